@@ -0,0 +1,136 @@
+package io;
+
+import java.io.IOException;
+
+/**
+ * The bytes a FeatureInputStream reads, with a mark to go back to.
+ *
+ * Positions count bytes from the start of the input.  The bytes from the
+ * mark on, from the hold on, and a few before the read position, are kept;
+ * mark, rewind, commit and unread only move positions.  The hold is a
+ * second mark for the reader of a token, so that it does not move the mark
+ * of the caller; it is released when the token has been read.
+ *
+ * Line and column are not counted as bytes are read.  They are counted
+ * when asked for, by scanning the bytes from the last position they are
+ * known at, and a window settles them before it releases bytes, so that
+ * they stay known at a kept position.  A column counts the characters
+ * after the last '\n', leaving out '\r'.
+ */
+abstract class ByteWindow {
+
+    /** how many bytes before the read position are always kept */
+    static final int BACK = 4;
+
+    /** the next byte to read, the mark and the hold, or -1 for none */
+    long pos = 0,
+            markAt = 0,
+            holdAt = -1;
+    /** the line and column at settled, which is never after floor, and at located, the last position asked for */
+    private long settled = 0,
+            located = 0;
+    private int settledLine = 1,
+            settledCol = 1;
+    int line = 1,
+            col = 1;
+    /** how locate counts characters: as bytes, as UTF-16 units (1 big-endian, 2 little-endian) or else as UTF-8 */
+    boolean singleByteChars = false;
+    int utf16 = 0;
+
+    abstract int read() throws IOException;
+
+    abstract int read(byte[] b, int off, int len) throws IOException;
+
+    /** the byte at position p, which must have been read and still be kept */
+    abstract int get(long p);
+
+    /** the number of bytes available without blocking */
+    abstract int queued();
+
+    /** the oldest position that is kept */
+    long floor()
+    {
+        long f = Math.max(0, pos - BACK);
+        f = markAt >= 0 ? Math.min(markAt, f) : f;
+        return holdAt >= 0 ? Math.min(holdAt, f) : f;
+    }
+
+    /** sets line and col to those at p, which must be kept; the bytes from settled on always are */
+    void locate(long p)
+    {
+        if (located < settled || located > p)
+        {
+            located = settled;
+            line = settledLine;
+            col = settledCol;
+        }
+        while (located < p)
+        {
+            int x = get(located++);
+            if (utf16 != 0 && located < p)
+            {
+                int y = get(located++);
+                x = utf16 == 1 ? x << 8 | y : y << 8 | x;
+            }
+            else if (!singleByteChars && (x & 0xC0) == 0x80)
+            {
+                continue;
+            }
+            if (x == '\n')
+            {
+                line++;
+                col = 1;
+            }
+            else if (x != '\r')
+            {
+                col++;
+            }
+        }
+    }
+
+    /** counts lines up to p, before the bytes before it are released */
+    void settle(long p)
+    {
+        if (p > settled)
+        {
+            locate(p);
+            settled = p;
+            settledLine = line;
+            settledCol = col;
+        }
+    }
+
+    /** keeps the bytes from the read position on, and releases those before it */
+    void mark()
+    {
+        markAt = pos;
+    }
+
+    /** releases the mark and the bytes it kept */
+    void commit()
+    {
+        markAt = -1;
+    }
+
+    /** goes back to the mark; returns the number of bytes read since */
+    int rewind()
+    {
+        if (markAt < 0)
+        {
+            throw new RuntimeException("no mark to rewind to; it is committed or past the retention limit");
+        }
+        int n = (int) (pos - markAt);
+        pos = markAt;
+        return n;
+    }
+
+    /** moves the read position back to p, which must still be kept */
+    void unread(long p)
+    {
+        if (p < floor() || p > pos)
+        {
+            throw new IllegalArgumentException("position " + p + " is not kept");
+        }
+        pos = p;
+    }
+}
@@ -1,59 +1,67 @@
 package io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /** This caches bytes from the beginning, or from last mark() onwards.
- *  Can be rewinded as many times as necessary. */
+ *  Can be rewinded as many times as necessary, as long as the mark is
+ *  no more than the retention limit back. */
 public class CachingInputStream extends InputStream {
     
-    public CachingInputStream(InputStream in) { this.in = in; }
+    public CachingInputStream(InputStream in) { this(in, FeatureInputStream.DEFAULT_RETENTION); }
+    
+    public CachingInputStream(InputStream in, int maxRetained)
+    {
+        this.in = in;
+        this.cache = new RingBuffer(in, maxRetained);
+    }
     
     final private InputStream in;
-    private int recovering = 0;
-    private ByteArrayOutputStream cache = new ByteArrayOutputStream();
-    private byte[] cached;
+    final private RingBuffer cache;
+    /** the farthest position read out, beyond which the ring holds read-ahead */
+    private long reached = 0;
     
     @Override public int read() throws IOException
     {
-        if (recovering > 0)
-        {
-            return recover();
-        }
-        int r = in.read();
-        cache.write(r);
+        int r = cache.read();
+        reached = Math.max(reached, cache.pos);
         return r;
     }
     
+    @Override public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = cache.read(b, off, len);
+        reached = Math.max(reached, cache.pos);
+        return n;
+    }
+    
+    /** caches from here on and releases what was cached before */
     public void mark()
     {
-        if (recovering > 0)
-        {
-            cache = util.Arf.copyOfRange(cache, cache.size() - recovering, cache.size());
-        }
-        else
-        {
-            recovering = 0;
-            cache.reset();
-        }
+        cache.mark();
     }
     
-    public int rewind()
+    /** releases the cache; rewind is not possible until the next mark */
+    public void commit()
     {
-        cached = cache.toByteArray();
-        recovering = cached.length;
-        return recovering;
+        cache.commit();
     }
     
-    private int recover()
+    /** goes back to the mark; returns the number of bytes read since */
+    public int rewind()
     {
-        return cached[cached.length - recovering--];
+        return cache.rewind();
     }
 
+    /** the number of bytes that a rewind left to be read again */
     public int queueLength()
     {
-        return recovering;
+        return (int) (reached - cache.pos);
+    }
+
+    @Override public void close() throws IOException
+    {
+        in.close();
     }
 
 }
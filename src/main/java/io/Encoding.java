@@ -0,0 +1,30 @@
+package io;
+
+/**
+ * How FeatureInputStream decodes characters.  Characters outside the BMP
+ * are read as two chars, a surrogate pair, as in a String.
+ */
+public enum Encoding
+{
+    /**
+     * UTF-8, but a byte that does not start a well-formed sequence is read
+     * as an ISO-8859-1 character; the default
+     */
+    GUESS(false),
+    /** one byte per character; a byte above 0x7F is an error */
+    ASCII(true),
+    /** ISO-8859-1: one byte per character, no decoding */
+    LATIN_1(true),
+    /** strict UTF-8: a malformed sequence is an error */
+    UTF_8(false),
+    UTF_16BE(false),
+    UTF_16LE(false);
+
+    /** whether a character is a byte */
+    public final boolean singleByte;
+
+    Encoding(boolean singleByte)
+    {
+        this.singleByte = singleByte;
+    }
+}
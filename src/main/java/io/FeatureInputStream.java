@@ -3,40 +3,150 @@ package io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
+/**
+ * Reads bytes through a ByteWindow, by default a RingBuffer that is
+ * refilled with bulk reads.  The bytes from the mark on are kept, up to a
+ * retention limit, so mark, rewind and unreading the last byte or character
+ * move a position and copy nothing.
+ *
+ * Characters are decoded in the Encoding given to the constructor, by
+ * default UTF-8 with an ISO-8859-1 fallback; readUtf8 reads the next one
+ * whatever the encoding.
+ */
 public class FeatureInputStream extends InputStream {
 
+    /** the default number of bytes a mark keeps before it is dropped */
+    public static final int DEFAULT_RETENTION = 1 << 20;
+
     final private InputStream in;
-    private int buffer = -1;
-    private int line = 1,
-            col = 1;
+    private final ByteWindow window;
+    private Encoding encoding = Encoding.GUESS;
+    /** the low surrogate of the last character read, still to be read, or 0 */
+    private char pendingLow = 0;
+    /** the last character read by readUtf8 and where it starts, for push; the high surrogate of a pair that is being read */
+    private int lastChar = -1;
+    private long charStart = 0;
+    /** whether the last character read is the low surrogate of the pair in lastChar */
+    private boolean lowRead = false;
+    /** whether the last byte read came from the window */
+    private boolean windowed = false;
+    /** pushed back bytes or characters that are not in the window, the last one is read first */
+    private int[] buffer = new int[4];
+    private int buffered = 0;
 
     
     public FeatureInputStream(InputStream in)
+    {
+        this(in, DEFAULT_RETENTION);
+    }
+
+    /** @param maxRetained how many bytes a mark keeps at most before it is dropped */
+    public FeatureInputStream(InputStream in, int maxRetained)
+    {
+        this(in, new RingBuffer(in, maxRetained));
+    }
+
+    public FeatureInputStream(InputStream in, Encoding encoding)
+    {
+        this(in, DEFAULT_RETENTION);
+        setEncoding(encoding);
+    }
+
+    FeatureInputStream(InputStream in, ByteWindow window)
     {
         this.in = in;
+        this.window = window;
         mark();
     }
     
-    protected io.CachingInputStream getBackingCachingInputStream()
+    int[] markBuffer = new int[0];
+    public Encoding getEncoding()
     {
-        return util.RT.requireClass(this, in, io.CachingInputStream.class);
+        return encoding;
     }
-    private int[] markPos = null;
-    int markBuffer = -1;
-    /** shorthand that assumes that this decorates a CachingInputStream */
+
+    /** decodes the characters from here on in encoding */
+    public void setEncoding(Encoding encoding)
+    {
+        this.encoding = encoding;
+        window.singleByteChars = encoding.singleByte;
+        window.utf16 = encoding == Encoding.UTF_16BE ? 1 : encoding == Encoding.UTF_16LE ? 2 : 0;
+    }
+
+    /** keeps the input from here on, until the next mark or commit */
     public void mark()
     {
-        markPos = snapPos();
-        markBuffer = buffer;
-        getBackingCachingInputStream().mark();
+        markBuffer = Arrays.copyOf(buffer, buffered);
+        window.mark();
+    }
+    /** releases the input kept since the mark; rewind is not possible until the next mark */
+    public void commit()
+    {
+        window.commit();
     }
-    /** shorthand that assumes that this decorates a CachingInputStream */
+    /** goes back to the last mark; returns the number of bytes read since */
     public int rewind()
     {
-        line = markPos[0];  col = markPos[1];
-        buffer = markBuffer;
-        return getBackingCachingInputStream().rewind();
+        int n = window.rewind();
+        buffered = 0;
+        lastChar = -1;
+        lowRead = false;
+        windowed = false;
+        pendingLow = 0;
+        for (int x : markBuffer)
+            push(x);
+        return n;
+    }
+
+    /**
+     * the offset of the next byte from the start of the input; only bytes
+     * that have not been pushed back have offsets
+     */
+    public long position()
+    {
+        if (buffered > 0)
+        {
+            throw new RuntimeException("pushed back input has no position");
+        }
+        return window.pos;
+    }
+
+    /**
+     * keeps the input from the current position on, like mark but without
+     * moving the mark, until release or the next hold
+     *
+     * @return the current position
+     */
+    public long hold()
+    {
+        long p = position();
+        window.holdAt = p;
+        return p;
+    }
+
+    /** lets go of the hold, so that only the mark keeps input */
+    public void release()
+    {
+        window.holdAt = -1;
+    }
+
+    /** the byte at offset p, which must be kept by the mark or the hold */
+    public int byteAt(long p)
+    {
+        return window.get(p);
+    }
+
+    /** goes back to offset p, which must be kept by the mark or the hold */
+    public void unreadTo(long p)
+    {
+        position();
+        window.unread(p);
+        pendingLow = 0;
+        lastChar = -1;
+        lowRead = false;
+        windowed = false;
     }
 
     
@@ -50,27 +160,72 @@ public class FeatureInputStream extends InputStream {
     @Override
     public int read() throws IOException
     {
-        if (buffer != -1)
+        lastChar = -1;
+        lowRead = false;
+        windowed = false;
+        if (buffered > 0)
         {
-            int x = buffer;
-            buffer = -1;
-            return x;
+            return buffer[--buffered];
         }
-        return in.read();
+        int x = window.read();
+        windowed = x != -1;
+        return x;
     }
 
-    public void push(int byt)
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
     {
-        if (buffer != -1)
-            throw new RuntimeException("fin buffer overflow");
-        buffer = byt;
+        if (buffered > 0)
+        {
+            return super.read(b, off, len);
+        }
+        lastChar = -1;
+        lowRead = false;
+        windowed = false;
+        return window.read(b, off, len);
     }
-    
-    private void updLc(int ch) {updLc(ch,1);}
-    private void updLc(int ch, int dir)
+
+    /** reads a byte of the input */
+    public int readByte() throws IOException
     {
-        if      (ch == '\n')    { line += dir;  col = dir>0?1:100; }
-        else if (ch != '\r')    { col += dir; }
+        return read();
+    }
+
+    /**
+     * pushes back a byte or a character; the byte or character just read is
+     * unread in the window, and up to four others can be pushed.  A
+     * character outside the BMP is unread as a whole: its low surrogate is
+     * read again next, and after the high one too is pushed back, the whole
+     * character is.
+     */
+    public void push(int byt)
+    {
+        if (byt == -1)
+            return;
+        if (buffered == 0 && lowRead && Character.isLowSurrogate((char) byt))
+        {
+            pendingLow = (char) byt;
+            lowRead = false;
+            return;
+        }
+        if (buffered == 0 && byt == lastChar)
+        {
+            window.unread(charStart);
+            pendingLow = 0;
+            lastChar = -1;
+            lowRead = false;
+            windowed = false;
+            return;
+        }
+        if (buffered == 0 && windowed && byt == window.get(window.pos - 1))
+        {
+            window.unread(window.pos - 1);
+            windowed = false;
+            return;
+        }
+        if (buffered == buffer.length)
+            throw new RuntimeException("fin buffer overflow");
+        buffer[buffered++] = byt;
     }
     
     public void skipDelims() throws IOException
@@ -78,24 +233,78 @@ public class FeatureInputStream extends InputStream {
         int ch = read();
         while(ch == 0x20 || ch == '\r' || ch == '\n' || ch == '\t' || ch == ',')
         {
-            updLc(ch);
             ch = read();
         }
-        buffer = ch;
+        push(ch);
     }
 
+    /** reads a character in the encoding of this stream */
     public int readUtf8() throws IOException
+    {
+        if (pendingLow != 0)
+        {
+            int x = pendingLow;
+            pendingLow = 0;
+            lowRead = lastChar != -1;
+            return x;
+        }
+        boolean fromWindow = buffered == 0;
+        long start = window.pos;
+        lowRead = false;
+        int x;
+        switch (encoding)
+        {
+            case ASCII:
+                x = read();
+                if (x > 0x7F)
+                {
+                    throw new ParseEx(this, "not ASCII: 0x" + Integer.toHexString(x));
+                }
+                break;
+            case LATIN_1:
+                x = read();
+                break;
+            case UTF_8:
+                x = readStrictUtf8();
+                break;
+            case UTF_16BE:
+            case UTF_16LE:
+                x = readUtf16();
+                break;
+            default:
+                x = readGuess();
+        }
+        if (fromWindow && x != -1)
+        {
+            lastChar = x;
+            charStart = start;
+        }
+        return x;
+    }
+
+    /** returns the high surrogate of a character outside the BMP, and keeps the low one for the next read */
+    private int surrogates(int cp)
+    {
+        pendingLow = Character.lowSurrogate(cp);
+        return Character.highSurrogate(cp);
+    }
+
+    private int readGuess() throws IOException
     {
         int x = read();
         if (x < 192)
         {
-            updLc(x);
             return x;
         }
         int ch = read();
         if ((ch & 0xC0) == 0x80)
         { // unicode multi-byte character
             int ff = x & 0xE0;
+            if ((x & 0xF8) == 0xF0)
+            { // four-byte char
+                x = ((x & 0x07) << 12) | ((ch & 0x3F) << 6) | (read() & 0x3F);
+                return surrogates((x << 6) | (read() & 0x3F));
+            }
             if (ff == 0xE0)
             { // three-byte char
                 x = ((x & 0x0F) << 6) | (ch & 0x3F);
@@ -106,19 +315,59 @@ public class FeatureInputStream extends InputStream {
                 x = (x & 0x1F);
             }
             x = (x << 6) | (ch & 0x3F);
-            updLc(x);
             return x;
         }
         else
         { // it wasn't utf-8 after all, assume ISO-8859-1
-            buffer = ch;
-            updLc(x);
+            push(ch);
             return x;
         }
     }
 
+    private int readStrictUtf8() throws IOException
+    {
+        int x = read();
+        if (x < 0x80)
+        {
+            return x;
+        }
+        int n = x >= 0xC2 && x <= 0xDF ? 1 : x >= 0xE0 && x <= 0xEF ? 2 : x >= 0xF0 && x <= 0xF4 ? 3 : -1;
+        if (n < 0)
+        {
+            throw new ParseEx(this, "malformed UTF-8: 0x" + Integer.toHexString(x));
+        }
+        int cp = x & (0x3F >> n);
+        for (int i = 0; i < n; i++)
+        {
+            int ch = read();
+            if ((ch & 0xC0) != 0x80)
+            {
+                throw new ParseEx(this, "malformed UTF-8: 0x" + Integer.toHexString(x) + " is not followed by " + n + " continuation bytes");
+            }
+            cp = (cp << 6) | (ch & 0x3F);
+        }
+        if (n == 2 && (cp < 0x800 || Character.isSurrogate((char) cp)) || n == 3 && (cp < 0x10000 || cp > 0x10FFFF))
+        {
+            throw new ParseEx(this, "malformed UTF-8: code point 0x" + Integer.toHexString(cp));
+        }
+        return cp > 0xFFFF ? surrogates(cp) : cp;
+    }
+
+    private int readUtf16() throws IOException
+    {
+        int a = read();
+        if (a == -1)
+        {
+            return -1;
+        }
+        int b = read();
+        if (b == -1)
+        {
+            throw new ParseEx(this, "UTF-16 input ends in the middle of a character");
+        }
+        return encoding == Encoding.UTF_16BE ? a << 8 | b : b << 8 | a;
+    }
 
-    
     public char readChar() throws IOException
     {
         int ch = readUtf8();
@@ -140,12 +389,11 @@ public class FeatureInputStream extends InputStream {
 
     public int peekChar() throws IOException
     {
-        if (buffer != -1)
-            return (char)buffer;
-        int[] pos = snapPos();
-        buffer = readUtf8();
-        line = pos[0];  col = pos[1];
-        return buffer;
+        if (buffered > 0)
+            return (char)buffer[buffered - 1];
+        int x = readUtf8();
+        push(x);
+        return x;
     }
 
     public String readSpan(char a, char o) throws IOException
@@ -163,12 +411,13 @@ public class FeatureInputStream extends InputStream {
         return b.toString();
     }
 
+    /** the text from the mark to the current position */
     public String readMarked() throws IOException
     {
-        CachingInputStream cin = getBackingCachingInputStream();
         StringBuilder b = new StringBuilder();
-        cin.rewind();
-        while(cin.queueLength() > 0)
+        long end = window.pos;
+        rewind();
+        while(window.pos < end)
         {
             b.append((char)readUtf8());
         }
@@ -176,8 +425,10 @@ public class FeatureInputStream extends InputStream {
     }
 
     
-    public int getLine() { return line; }
-    public int getCol() { return col; }
-    public int[] snapPos() { return new int[]{line,col}; }
+    /** the line of the current position, counted when asked for; pushed back characters are not counted */
+    public int getLine() { window.locate(window.pos); return window.line; }
+    /** the column of the current position, see getLine */
+    public int getCol() { window.locate(window.pos); return window.col; }
+    public int[] snapPos() { return new int[]{getLine(),getCol()}; }
 
 }
@@ -0,0 +1,37 @@
+package io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A FeatureInputStream over a memory mapped file.  Bytes are read straight
+ * from the mapping, without copying them into a buffer, and the whole file
+ * stays reachable: rewind goes back to the mark however far it is.  Files
+ * larger than 2 GB are mapped a region at a time.
+ */
+public class MappedFeatureInputStream extends FeatureInputStream {
+
+    /** half of the size of a mapped region */
+    static final long HALF_REGION = 1L << 29;
+
+    private final FileChannel channel;
+
+    public MappedFeatureInputStream(Path file) throws IOException
+    {
+        this(FileChannel.open(file, StandardOpenOption.READ), HALF_REGION);
+    }
+
+    MappedFeatureInputStream(FileChannel channel, long halfRegion) throws IOException
+    {
+        super(null, new MappedWindow(channel, halfRegion));
+        this.channel = channel;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
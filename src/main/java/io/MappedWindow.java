@@ -0,0 +1,101 @@
+package io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The bytes of a file, read from memory mapped regions of it.
+ *
+ * A region starts one half before the half it was mapped for, so going back
+ * up to half a region stays in it; a read outside the region maps another.
+ * Every byte of the file is kept, so the mark is never dropped.
+ */
+final class MappedWindow extends ByteWindow {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long half;
+    private MappedByteBuffer region;
+    /** the file position where region starts and ends */
+    private long base = 0,
+            end = 0;
+
+    MappedWindow(FileChannel channel, long half) throws IOException
+    {
+        this.channel = channel;
+        this.size = channel.size();
+        this.half = half;
+    }
+
+    /** maps the region around p, or returns false when p is at the end of the file */
+    private boolean map(long p) throws IOException
+    {
+        if (p >= size)
+        {
+            return false;
+        }
+        base = Math.max(0, p - p % half - half);
+        end = Math.min(size, base + 3 * half);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, base, end - base);
+        return true;
+    }
+
+    @Override
+    int read() throws IOException
+    {
+        if ((pos < base || pos >= end) && !map(pos))
+        {
+            return -1;
+        }
+        return region.get((int) (pos++ - base)) & 0xFF;
+    }
+
+    @Override
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if ((pos < base || pos >= end) && !map(pos))
+        {
+            return -1;
+        }
+        int n = (int) Math.min(len, end - pos);
+        region.position((int) (pos - base));
+        region.get(b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    int get(long p)
+    {
+        if (p < base || p >= end)
+        {
+            try
+            {
+                map(p);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return region.get((int) (p - base)) & 0xFF;
+    }
+
+    @Override
+    long floor()
+    {
+        return 0;
+    }
+
+    @Override
+    int queued()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, size - pos);
+    }
+}
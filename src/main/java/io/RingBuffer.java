@@ -0,0 +1,120 @@
+package io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The bytes of a stream from the mark on, in a ring that is refilled with
+ * bulk reads.  Mark, rewind and commit move positions and copy nothing.
+ *
+ * The ring grows to hold the bytes from the mark and the hold on, but not
+ * past the retention limit: when that is reached the mark is dropped and
+ * its bytes are released.  The hold is never dropped, as it keeps the token
+ * being read; a token longer than the ring is an IOException.  Without a
+ * mark only the last few bytes read are kept, so that they can be unread.
+ */
+final class RingBuffer extends ByteWindow {
+
+    private final InputStream in;
+    private final int maxRetained;
+    private byte[] ring = new byte[8192];
+    private int mask = ring.length - 1;
+    /** the end of the bytes read in */
+    private long limit = 0;
+
+    RingBuffer(InputStream in, int maxRetained)
+    {
+        if (maxRetained < 1)
+        {
+            throw new IllegalArgumentException("retention must be positive: " + maxRetained);
+        }
+        this.in = in;
+        this.maxRetained = maxRetained;
+    }
+
+    @Override
+    int read() throws IOException
+    {
+        if (pos == limit && !fill())
+        {
+            return -1;
+        }
+        return ring[(int) pos++ & mask] & 0xFF;
+    }
+
+    @Override
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        if (pos == limit && !fill())
+        {
+            return -1;
+        }
+        int at = (int) pos & mask;
+        int n = (int) Math.min(Math.min(len, limit - pos), ring.length - at);
+        System.arraycopy(ring, at, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    int get(long p)
+    {
+        return ring[(int) p & mask] & 0xFF;
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (limit - floor() == ring.length)
+        {
+            if (ring.length < maxRetained)
+            {
+                grow();
+            }
+            else
+            {
+                markAt = -1;
+                if (limit - floor() == ring.length)
+                {
+                    throw new IOException("a token is longer than the retention limit of " + maxRetained + " bytes");
+                }
+            }
+        }
+        settle(floor());
+        int at = (int) limit & mask;
+        int free = (int) (ring.length - (limit - floor()));
+        int n = 0;
+        while (n == 0)
+        {
+            n = in.read(ring, at, Math.min(free, ring.length - at));
+        }
+        if (n < 0)
+        {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private void grow()
+    {
+        byte[] r = new byte[ring.length * 2];
+        int m = r.length - 1;
+        for (long p = floor(); p < limit; p++)
+        {
+            r[(int) p & m] = ring[(int) p & mask];
+        }
+        ring = r;
+        mask = m;
+    }
+
+    /** the number of bytes read in but not read out */
+    @Override
+    int queued()
+    {
+        return (int) (limit - pos);
+    }
+}
@@ -0,0 +1,127 @@
+package io.streamregex;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Input equivalence classes of an Nfa.
+ *
+ * Symbols are in the same class when every state of the NFA either takes
+ * all of them or none, so automata only need one transition per class
+ * instead of one per symbol.  The space is first cut at every range
+ * boundary of the pattern, then intervals that no state tells apart are
+ * merged: [^a] gives two classes, not three.
+ */
+final class Alphabet {
+
+    /** the number of classes */
+    final int size;
+    /** the class of each symbol below 256 */
+    final char[] low = new char[256];
+    /** a member of each class */
+    final int[] rep;
+    /** interval i starts at bounds[i] and belongs to class ofInterval[i] */
+    final int[] bounds, ofInterval;
+
+    private Alphabet(int[] bounds, int[] ofInterval, int size)
+    {
+        this.bounds = bounds;
+        this.ofInterval = ofInterval;
+        this.size = size;
+        this.rep = new int[size];
+        Arrays.fill(rep, -1);
+        for (int i = bounds.length - 1; i >= 0; i--)
+        {
+            rep[ofInterval[i]] = bounds[i];
+        }
+        for (int c = 0; c < low.length; c++)
+        {
+            low[c] = (char) search(c);
+        }
+    }
+
+    int classOf(int c)
+    {
+        return c < 256 ? low[c] : search(c);
+    }
+
+    private int search(int c)
+    {
+        int i = Arrays.binarySearch(bounds, c);
+        return ofInterval[i >= 0 ? i : -i - 2];
+    }
+
+    static Alphabet of(Nfa nfa)
+    {
+        int max = nfa.maxSymbol();
+        HashSet<Nfa.StateSet> seen = new HashSet<>();
+        TreeSet<Integer> cuts = new TreeSet<>();
+        cuts.add(0);
+        for (int x = 0; x < nfa.size; x++)
+        {
+            int[] r = nfa.ranges(x);
+            if (r.length == 0 || !seen.add(new Nfa.StateSet(r)))
+            {
+                continue;
+            }
+            for (int i = 0; i < r.length; i += 2)
+            {
+                cuts.add(r[i]);
+                if (r[i + 1] < max)
+                {
+                    cuts.add(r[i + 1] + 1);
+                }
+            }
+        }
+        int[] bounds = new int[cuts.size()];
+        int n = 0;
+        for (int c : cuts)
+        {
+            bounds[n++] = c;
+        }
+        // refine: each distinct range set splits the classes it touches
+        int[] cls = new int[n];
+        int count = 1;
+        int[] stamp = new int[n + 1], split = new int[n + 1];
+        int gen = 0;
+        for (Nfa.StateSet set : seen)
+        {
+            gen++;
+            int[] r = set.states;
+            for (int i = 0; i < r.length; i += 2)
+            {
+                int from = Arrays.binarySearch(bounds, r[i]);
+                int to = r[i + 1] < max ? Arrays.binarySearch(bounds, r[i + 1] + 1) : n;
+                for (int k = from; k < to; k++)
+                {
+                    int old = cls[k];
+                    if (stamp[old] != gen)
+                    {
+                        stamp[old] = gen;
+                        split[old] = count++;
+                        if (count > stamp.length)
+                        {
+                            stamp = Arrays.copyOf(stamp, count * 2);
+                            split = Arrays.copyOf(split, count * 2);
+                        }
+                    }
+                    cls[k] = split[old];
+                }
+            }
+        }
+        // renumber densely in order of first appearance
+        int[] id = new int[count];
+        Arrays.fill(id, -1);
+        int size = 0;
+        for (int k = 0; k < n; k++)
+        {
+            if (id[cls[k]] == -1)
+            {
+                id[cls[k]] = size++;
+            }
+            cls[k] = id[cls[k]];
+        }
+        return new Alphabet(bounds, cls, size);
+    }
+}
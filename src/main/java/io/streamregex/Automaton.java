@@ -0,0 +1,37 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+
+/** An engine that runs a compiled pattern over a stream. */
+interface Automaton {
+
+    boolean matches(FeatureInputStream in) throws IOException;
+
+    /** reads the longest item accepted at the start of in, or returns null */
+    String readItem(FeatureInputStream in) throws IOException;
+
+    /** resets to the start of the pattern; returns the rule accepted by the empty input, or -1 */
+    int begin();
+
+    /**
+     * advances over c, a character (or a byte for the BYTES engine); returns
+     * the accepted rule, -1, or -2 when nothing can match any more
+     */
+    int step(int c);
+
+    /** the rule id accepted by the last readItem, or -1 */
+    int lastRule();
+
+    /** the number of states built so far */
+    int size();
+
+    /** tells that the lane simulation should run instead from now on */
+    boolean exhausted();
+
+    /**
+     * an engine for the same pattern with working state of its own, for
+     * another Session; what does not change once it is built is shared
+     */
+    Automaton fork();
+}
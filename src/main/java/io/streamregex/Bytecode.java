@@ -0,0 +1,390 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a Dfa into a JVM class, so that the JIT sees each pattern as if
+ * it had been written by hand.
+ *
+ * Every DFA state becomes a block of code that reads a character and jumps
+ * straight to the block of the next state; the transitions of a state are
+ * inlined as range comparisons over its sorted character ranges.  The class
+ * file is written by hand (version 49, which needs no stack map frames) and
+ * loaded by a class loader of its own.
+ */
+final class Bytecode {
+
+    /** the methods of a generated class */
+    public interface Program {
+
+        boolean matches(FeatureInputStream in) throws IOException;
+
+        /**
+         * appends the characters read to b, unreads those after the
+         * accepted prefix and stores the accepted rule in rule[0]; the
+         * caller holds in from its position
+         *
+         * @return the length of the accepted prefix of b
+         */
+        int read(FeatureInputStream in, StringBuilder b, int[] rule) throws IOException;
+    }
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+    private static final String FIS = "io/FeatureInputStream", SB = "java/lang/StringBuilder";
+
+    private final Dfa dfa;
+    private final String pattern;
+    /** the sorted character ranges and target state of each state: lo, hi, target, ... */
+    private final int[][] edges;
+    private final Pool cp = new Pool();
+
+    private Bytecode(Dfa dfa, String pattern)
+    {
+        this.dfa = dfa;
+        this.pattern = pattern;
+        this.edges = new int[dfa.size][];
+        for (int s = 0; s < dfa.size; s++)
+        {
+            edges[s] = dfa.edges(s);
+        }
+    }
+
+    static Program compile(Dfa dfa, String pattern)
+    {
+        if (dfa.bytes)
+        {
+            throw new IllegalArgumentException("a byte DFA can not be compiled");
+        }
+        String name = "io/streamregex/Generated" + COUNT.incrementAndGet();
+        byte[] bytes = new Bytecode(dfa, pattern).classFile(name);
+        try
+        {
+            return (Program) new Loader().define(name.replace('/', '.'), bytes).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            throw new CompileEx(pattern, "can not load the compiled pattern: " + e);
+        }
+    }
+
+    private byte[] classFile(String name)
+    {
+        int self = cp.cls(name), object = cp.cls("java/lang/Object"), program = cp.cls("io/streamregex/Bytecode$Program");
+        int code = cp.utf8("Code");
+        Code init = new Code();
+        init.op(0x2A);                                          // aload_0
+        init.op(0xB7).u2(cp.method("java/lang/Object", "<init>", "()V"));
+        init.op(0xB1);                                          // return
+        Code matches = matches(), read = read();
+        int[] names = {
+            cp.utf8("<init>"), cp.utf8("()V"),
+            cp.utf8("matches"), cp.utf8("(L" + FIS + ";)Z"),
+            cp.utf8("read"), cp.utf8("(L" + FIS + ";L" + SB + ";[I)I")
+        };
+        Out o = new Out();
+        o.u4(0xCAFEBABE).u2(0).u2(49);
+        o.u2(cp.count);
+        o.bytes(cp.out.buf, cp.out.size);
+        o.u2(0x31).u2(self).u2(object);                        // public final super
+        o.u2(1).u2(program);
+        o.u2(0);
+        o.u2(3);
+        method(o, names[0], names[1], code, init, 1, 1);
+        method(o, names[2], names[3], code, matches, 2, 3);
+        method(o, names[4], names[5], code, read, 3, 9);
+        o.u2(0);
+        return Arrays.copyOf(o.buf, o.size);
+    }
+
+    private static void method(Out o, int name, int desc, int code, Code c, int stack, int locals)
+    {
+        c.resolve();
+        o.u2(0x01).u2(name).u2(desc).u2(1);                    // public, one attribute
+        o.u2(code).u4(12 + c.size).u2(stack).u2(locals).u4(c.size);
+        o.bytes(c.buf, c.size);
+        o.u2(0).u2(0);
+    }
+
+    /**
+     * locals: 1 in, 2 c.  Block s reads c, returns whether s accepts at the
+     * end of the input and otherwise jumps to the block of the next state.
+     */
+    private Code matches()
+    {
+        Code m = new Code();
+        int readUtf8 = cp.method(FIS, "readUtf8", "()I");
+        m.jump(0xA7, label(dfa.start));                        // goto
+        for (int s = 1; s < dfa.size; s++)
+        {
+            m.mark(label(s));
+            m.op(0x2B).op(0xB6).u2(readUtf8).op(0x3D);         // c = in.readUtf8()
+            m.op(0x1C).op(0x02).jump(0xA0, -s - 1);            // if (c != -1) goto ranges
+            m.op(dfa.accept[s] >= 0 ? 0x04 : 0x03).op(0xAC);   // return accepting
+            m.mark(-s - 1);
+            ranges(m, s, 0x1C, FAIL);
+        }
+        m.mark(FAIL);
+        m.mark(label(Dfa.DEAD));
+        m.op(0x03).op(0xAC);                                   // return false
+        return m;
+    }
+
+    /**
+     * locals: 1 in, 2 b, 3 rule, 4 c, 5 accepted length, 6 accepted rule,
+     * 7-8 the stream position after the accepted prefix.  Entering block s
+     * appends c, as s was reached over it, and records an accept.
+     */
+    private Code read()
+    {
+        Code m = new Code();
+        int readUtf8 = cp.method(FIS, "readUtf8", "()I"), position = cp.method(FIS, "position", "()J");
+        int unreadTo = cp.method(FIS, "unreadTo", "(J)V");
+        int append = cp.method(SB, "append", "(C)L" + SB + ";"), length = cp.method(SB, "length", "()I");
+        m.op(0x03).op(0x36).op(5);                             // accepted = 0
+        m.op(0x02).op(0x36).op(6);                             // rule = -1
+        m.op(0x2B).op(0xB6).u2(position).op(0x37).op(7);       // end = in.position()
+        m.jump(0xA7, label(dfa.start));
+        for (int s = 1; s < dfa.size; s++)
+        {
+            m.mark(entry(s));
+            m.op(0x2C).op(0x15).op(4).op(0x92).op(0xB6).u2(append).op(0x57);   // b.append((char) c)
+            if (dfa.accept[s] >= 0)
+            {
+                m.op(0x2C).op(0xB6).u2(length).op(0x36).op(5);                 // accepted = b.length()
+                m.push(dfa.accept[s]).op(0x36).op(6);                          // rule = accept[s]
+                m.op(0x2B).op(0xB6).u2(position).op(0x37).op(7);               // end = in.position()
+            }
+            m.mark(label(s));
+            m.op(0x2B).op(0xB6).u2(readUtf8).op(0x36).op(4);                   // c = in.readUtf8()
+            m.op(0x15).op(4).op(0x02).jump(0x9F, END);                         // if (c == -1) goto end
+            ranges(m, s, -1, DIE);
+        }
+        m.mark(DIE);
+        m.mark(END);
+        m.mark(label(Dfa.DEAD));
+        m.op(0x2B).op(0x16).op(7).op(0xB6).u2(unreadTo);                       // in.unreadTo(end)
+        m.op(0x2D).op(0x03).op(0x15).op(6).op(0x4F);                           // rule[0] = rule
+        m.op(0x15).op(5).op(0xAC);                                             // return accepted
+        return m;
+    }
+
+    /** emits the range tests of state s, which jump to the next block or to fail */
+    private void ranges(Code m, int s, int load, int fail)
+    {
+        int[] e = edges[s];
+        for (int i = 0; i < e.length; i += 3)
+        {
+            int target = load == -1 ? entry(e[i + 2]) : label(e[i + 2]);
+            loadC(m, load);
+            if (e[i] == e[i + 1])
+            {
+                m.push(e[i]).jump(0x9F, target);               // if_icmpeq
+                continue;
+            }
+            if (e[i] > 0)
+            {
+                m.push(e[i]).jump(0xA1, fail);                 // if_icmplt: the ranges are sorted
+                loadC(m, load);
+            }
+            m.push(e[i + 1]).jump(0xA4, target);               // if_icmple
+        }
+        m.jump(0xA7, fail);
+    }
+
+    private static void loadC(Code m, int load)
+    {
+        if (load == -1)
+        {
+            m.op(0x15).op(4);                                  // iload 4
+        }
+        else
+        {
+            m.op(load);
+        }
+    }
+
+    private static final int FAIL = Integer.MIN_VALUE, DIE = Integer.MIN_VALUE + 1, END = Integer.MIN_VALUE + 2;
+
+    private static int label(int s)
+    {
+        return s;
+    }
+
+    private static int entry(int s)
+    {
+        return Integer.MIN_VALUE / 2 + s;
+    }
+
+    /** a growable byte buffer in class file byte order */
+    static class Out {
+
+        byte[] buf = new byte[256];
+        int size = 0;
+
+        Out op(int b)
+        {
+            if (size == buf.length)
+            {
+                buf = Arrays.copyOf(buf, size * 2);
+            }
+            buf[size++] = (byte) b;
+            return this;
+        }
+
+        Out u2(int v)
+        {
+            return op(v >> 8).op(v);
+        }
+
+        Out u4(int v)
+        {
+            return u2(v >>> 16).u2(v);
+        }
+
+        Out bytes(byte[] b, int n)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                op(b[i]);
+            }
+            return this;
+        }
+    }
+
+    /** method code with labels; 16 bit branch offsets are patched in by resolve */
+    final class Code extends Out {
+
+        private final HashMap<Integer, Integer> labels = new HashMap<>();
+        /** position of the opcode and label of every branch */
+        private final List<int[]> branches = new ArrayList<>();
+
+        void mark(int label)
+        {
+            labels.put(label, size);
+        }
+
+        Code jump(int opcode, int label)
+        {
+            branches.add(new int[] { size, label });
+            op(opcode).u2(0);
+            return this;
+        }
+
+        /** pushes an int constant */
+        Code push(int v)
+        {
+            if (v >= -1 && v <= 5)
+            {
+                op(0x03 + v);                                  // iconst_<v>
+            }
+            else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE)
+            {
+                op(0x10).op(v);                                // bipush
+            }
+            else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+            {
+                op(0x11).u2(v);                                // sipush
+            }
+            else
+            {
+                op(0x13).u2(cp.integer(v));                    // ldc_w
+            }
+            return this;
+        }
+
+        @Override
+        Code op(int b)
+        {
+            super.op(b);
+            return this;
+        }
+
+        @Override
+        Code u2(int v)
+        {
+            super.u2(v);
+            return this;
+        }
+
+        void resolve()
+        {
+            if (size > 0xFFFF)
+            {
+                throw new CompileEx(pattern, "DFA is too large to compile to bytecode");
+            }
+            for (int[] b : branches)
+            {
+                int offset = labels.get(b[1]) - b[0];
+                if (offset != (short) offset)
+                {
+                    throw new CompileEx(pattern, "DFA is too large to compile to bytecode");
+                }
+                buf[b[0] + 1] = (byte) (offset >> 8);
+                buf[b[0] + 2] = (byte) offset;
+            }
+        }
+    }
+
+    /** the constant pool */
+    final class Pool {
+
+        final Out out = new Out();
+        int count = 1;
+        private final HashMap<String, Integer> index = new HashMap<>();
+
+        private int entry(String key, Out bytes)
+        {
+            Integer i = index.get(key);
+            if (i == null)
+            {
+                i = count++;
+                index.put(key, i);
+                out.bytes(bytes.buf, bytes.size);
+            }
+            return i;
+        }
+
+        int utf8(String s)
+        {
+            byte[] b = s.getBytes(util.RT.UTF8);
+            return entry("U" + s, new Out().op(1).u2(b.length).bytes(b, b.length));
+        }
+
+        int cls(String name)
+        {
+            return entry("C" + name, new Out().op(7).u2(utf8(name)));
+        }
+
+        int integer(int v)
+        {
+            return entry("I" + v, new Out().op(3).u4(v));
+        }
+
+        int method(String owner, String name, String desc)
+        {
+            int c = cls(owner);
+            int nt = entry("N" + name + desc, new Out().op(12).u2(utf8(name)).u2(utf8(desc)));
+            return entry("M" + owner + "." + name + desc, new Out().op(10).u2(c).u2(nt));
+        }
+    }
+
+    /** defines one generated class; a loader per class lets it be unloaded with its regex */
+    private static final class Loader extends ClassLoader {
+
+        Loader()
+        {
+            super(Bytecode.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] b)
+        {
+            return defineClass(name, b, 0, b.length);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package io.streamregex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A character class.  The parser fills in the in/out sets and ranges, then
+ * simplify() resolves them, negations included, into sorted ranges and
+ * compiles those into lookup tables: a bitmap of two longs for ASCII, a dense
+ * bitmap for the rest of the two-byte block up to the highest member there,
+ * and a binary search over the ranges for everything above.
+ */
+class CharClass {
+
+    static final int MAX_CHAR = 0xFFFF;
+    private static final int DENSE_LIMIT = 0x800;
+
+    int x = -1;
+    BitSet out = null;
+    List<CharRange> outr = new ArrayList<>();
+    BitSet in = null;
+    List<CharRange> inr = new ArrayList<>();
+
+    private int[] ranges;
+    private long ascii0, ascii1;
+    private long[] dense;
+    private int denseEnd = 128;
+
+    BitSet in()
+    {
+        if (in == null)
+        {
+            in = new BitSet(2048);
+        }
+        return in;
+    }
+
+    BitSet out()
+    {
+        if (out == null)
+        {
+            out = new BitSet(2048);
+        }
+        return out;
+    }
+
+    /** the members of this class as sorted, disjoint {lo, hi} pairs */
+    int[] ranges()
+    {
+        if (ranges == null)
+        {
+            simplify();
+        }
+        return ranges;
+    }
+
+    void simplify()
+    {
+        if (x != -1)
+        {
+            ranges = new int[] { x, x };
+        }
+        else
+        {
+            int[] pos = in == null && (inr == null || inr.isEmpty())
+                    ? new int[] { 0, MAX_CHAR }
+                    : union(concat(bits(in), pairs(inr)));
+            ranges = subtract(pos, union(concat(bits(out), pairs(outr))));
+        }
+        in = null;
+        out = null;
+        inr = null;
+        outr = null;
+        compile();
+    }
+
+    private void compile()
+    {
+        ascii0 = ascii1 = 0;
+        int last = -1;
+        for (int i = 0; i < ranges.length; i += 2)
+        {
+            if (ranges[i] < DENSE_LIMIT)
+            {
+                last = Math.min(ranges[i + 1], DENSE_LIMIT - 1);
+            }
+        }
+        if (last >= 128)
+        {
+            denseEnd = ((last >> 6) + 1) << 6;
+            dense = new long[(denseEnd - 128) >> 6];
+        }
+        for (int i = 0; i < ranges.length; i += 2)
+        {
+            for (int c = ranges[i], end = Math.min(ranges[i + 1], denseEnd - 1); c <= end; c++)
+            {
+                if (c < 64)
+                {
+                    ascii0 |= 1L << c;
+                }
+                else if (c < 128)
+                {
+                    ascii1 |= 1L << c;
+                }
+                else
+                {
+                    dense[(c >> 6) - 2] |= 1L << c;
+                }
+            }
+        }
+    }
+
+    boolean in(int c)
+    {
+        if (x != -1)
+        {
+            return c == x;
+        }
+        if (c < 64)
+        {
+            return c >= 0 && (ascii0 & 1L << c) != 0;
+        }
+        if (c < 128)
+        {
+            return (ascii1 & 1L << c) != 0;
+        }
+        if (c < denseEnd)
+        {
+            return (dense[(c >> 6) - 2] & 1L << c) != 0;
+        }
+        int lo = 0, hi = ranges.length / 2 - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (c < ranges[mid * 2])
+            {
+                hi = mid - 1;
+            }
+            else if (c > ranges[mid * 2 + 1])
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] bits(BitSet b)
+    {
+        if (b == null)
+        {
+            return new int[0];
+        }
+        int[] r = new int[0];
+        for (int i = b.nextSetBit(0); i >= 0; i = b.nextSetBit(i))
+        {
+            int j = b.nextClearBit(i);
+            r = concat(r, new int[] { i, j - 1 });
+            i = j;
+        }
+        return r;
+    }
+
+    private static int[] pairs(List<CharRange> L)
+    {
+        if (L == null)
+        {
+            return new int[0];
+        }
+        int[] r = new int[L.size() * 2];
+        for (int i = 0; i < L.size(); i++)
+        {
+            r[i * 2] = L.get(i).start;
+            r[i * 2 + 1] = L.get(i).end;
+        }
+        return r;
+    }
+
+    private static int[] concat(int[] a, int[] b)
+    {
+        int[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    /** sorts and merges {lo, hi} pairs, clamped to 0..MAX_CHAR */
+    static int[] union(int[] p)
+    {
+        long[] sorted = new long[p.length / 2];
+        for (int i = 0; i < sorted.length; i++)
+        {
+            sorted[i] = (long) Math.max(p[i * 2], 0) << 32 | Math.min(p[i * 2 + 1], MAX_CHAR);
+        }
+        Arrays.sort(sorted);
+        int[] r = new int[p.length];
+        int n = 0;
+        for (long v : sorted)
+        {
+            int lo = (int) (v >> 32), hi = (int) v;
+            if (lo > hi)
+            {
+                continue;
+            }
+            if (n > 0 && lo <= r[n - 1] + 1)
+            {
+                r[n - 1] = Math.max(r[n - 1], hi);
+            }
+            else
+            {
+                r[n++] = lo;
+                r[n++] = hi;
+            }
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    /** a minus b, both sorted and merged */
+    static int[] subtract(int[] a, int[] b)
+    {
+        int[] r = new int[a.length + b.length];
+        int n = 0, j = 0;
+        for (int i = 0; i < a.length; i += 2)
+        {
+            int lo = a[i], hi = a[i + 1];
+            while (j < b.length && b[j + 1] < lo)
+            {
+                j += 2;
+            }
+            for (int k = j; k < b.length && b[k] <= hi && lo <= hi; k += 2)
+            {
+                if (b[k] > lo)
+                {
+                    r[n++] = lo;
+                    r[n++] = b[k] - 1;
+                }
+                lo = Math.max(lo, b[k + 1] + 1);
+            }
+            if (lo <= hi)
+            {
+                r[n++] = lo;
+                r[n++] = hi;
+            }
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    public String toString()
+    {
+        if (x != -1)
+        {
+            return "'" + (char) x + "'";
+        }
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < ranges().length; i += 2)
+        {
+            b.append(new CharRange(ranges[i], ranges[i + 1]));
+        }
+        return b.append(']').toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (x >= 0)
+        {
+            return x;
+        }
+        return Arrays.hashCode(ranges());
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof CharClass))
+        {
+            return false;
+        }
+        CharClass c = (CharClass) obj;
+        if (x >= 0 || c.x >= 0)
+        {
+            return x == c.x;
+        }
+        return Arrays.equals(ranges(), c.ranges());
+    }
+
+}
@@ -0,0 +1,41 @@
+package io.streamregex;
+
+/** The characters start..end of a CharClass, both included. */
+class CharRange {
+
+    int start, end;
+
+    CharRange(int a, int b)
+    {
+        this.start = a;
+        this.end = b;
+    }
+
+    boolean in(int x)
+    {
+        return start <= x && x <= end;
+    }
+
+    public String toString()
+    {
+        return (char) start + "-" + (char) end;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return end * 31 + start;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof CharRange))
+        {
+            return false;
+        }
+        CharRange x = (CharRange) obj;
+        return start == x.start && end == x.end;
+    }
+
+}
@@ -0,0 +1,12 @@
+package io.streamregex;
+
+/** Thrown when a pattern can not be compiled into the requested form. */
+public class CompileEx extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CompileEx(String pattern, String message)
+    {
+        super(message + "  compiling  " + pattern);
+    }
+}
@@ -0,0 +1,80 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+
+/**
+ * Runs a Dfa through the class generated for it by Bytecode.  Stepping a
+ * character at a time, as RegexMapper does, goes through the tables of the
+ * Dfa.
+ */
+final class CompiledDfa implements Automaton {
+
+    private final Dfa dfa;
+    private final Bytecode.Program program;
+    private final int[] rule = new int[1];
+    private int lastRule = -1;
+
+    CompiledDfa(Dfa dfa, String pattern)
+    {
+        this(dfa, Bytecode.compile(dfa, pattern));
+    }
+
+    private CompiledDfa(Dfa dfa, Bytecode.Program program)
+    {
+        this.dfa = dfa;
+        this.program = program;
+    }
+
+    /** shares the generated class, which keeps no state */
+    @Override
+    public Automaton fork()
+    {
+        return new CompiledDfa((Dfa) dfa.fork(), program);
+    }
+
+    @Override
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        return program.matches(in);
+    }
+
+    @Override
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        int accepted = program.read(in, b, rule);
+        lastRule = accepted > 0 ? rule[0] : -1;
+        return accepted > 0 ? b.substring(0, accepted) : null;
+    }
+
+    @Override
+    public int begin()
+    {
+        return dfa.begin();
+    }
+
+    @Override
+    public int step(int c)
+    {
+        return dfa.step(c);
+    }
+
+    @Override
+    public int lastRule()
+    {
+        return lastRule;
+    }
+
+    @Override
+    public int size()
+    {
+        return dfa.size();
+    }
+
+    @Override
+    public boolean exhausted()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,428 @@
+package io.streamregex;
+
+import io.Encoding;
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import util.RT;
+
+/**
+ * A complete, minimized DFA compiled ahead of time from an Nfa.
+ *
+ * Input symbols are first mapped to their Alphabet class, so a class id
+ * stands for symbols that no state tells apart.  Transitions are kept in one
+ * int[] of states * classes; state 0 is dead.
+ */
+final class Dfa implements Automaton {
+
+    static final int DEAD = 0;
+
+    final Alphabet alphabet;
+    final int classes;
+    final int[] table;
+    /** the rule id accepted in a state, or -1 */
+    final int[] accept;
+    /** whether every transition of a state leads to the dead state, so that a token there can not grow */
+    final boolean[] ends;
+    final int start;
+    final int size;
+    /** runs over UTF-8 bytes instead of characters */
+    final boolean bytes;
+    private int lastRule = -1;
+    /** the state of begin/step */
+    private int current;
+
+    private Dfa(Alphabet alphabet, int[] table, int[] accept, int start, boolean bytes)
+    {
+        this.bytes = bytes;
+        this.alphabet = alphabet;
+        this.classes = alphabet.size;
+        this.table = table;
+        this.accept = accept;
+        this.start = start;
+        this.size = accept.length;
+        this.ends = new boolean[size];
+        for (int s = 0; s < size; s++)
+        {
+            ends[s] = true;
+            for (int k = 0; k < classes && ends[s]; k++)
+            {
+                ends[s] = table[s * classes + k] == DEAD;
+            }
+        }
+    }
+
+    static Dfa compile(Nfa nfa, int maxStates, String pattern)
+    {
+        Alphabet alphabet = Alphabet.of(nfa);
+        int k = alphabet.size;
+        HashMap<Nfa.StateSet, Integer> index = new HashMap<>();
+        List<int[]> sets = new ArrayList<>();
+        int[] mark = new int[nfa.size], stack = new int[nfa.size * 2 + 1], scratch = new int[nfa.size];
+        int gen = 1;
+        intern(new int[0], index, sets);
+        int start = intern(sorted(scratch, nfa.closure(nfa.start, scratch, 0, mark, gen, stack)), index, sets);
+        int[] table = new int[16 * k];
+        for (int s = 0; s < sets.size(); s++)
+        {
+            if (sets.size() > maxStates)
+            {
+                throw new CompileEx(pattern, "DFA needs more than " + maxStates + " states");
+            }
+            if ((s + 1) * k > table.length)
+            {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            int[] from = sets.get(s);
+            for (int i = 0; i < k; i++)
+            {
+                int n = 0;
+                gen++;
+                for (int x : from)
+                {
+                    if (nfa.in(x, alphabet.rep[i]))
+                    {
+                        n = nfa.closure(nfa.out[x], scratch, n, mark, gen, stack);
+                    }
+                }
+                table[s * k + i] = intern(sorted(scratch, n), index, sets);
+            }
+        }
+        int[] accept = new int[sets.size()];
+        for (int s = 0; s < accept.length; s++)
+        {
+            accept[s] = -1;
+            for (int x : sets.get(s))
+            {
+                if (nfa.op[x] == Nfa.MATCH && (accept[s] == -1 || nfa.out[x] < accept[s]))
+                {
+                    accept[s] = nfa.out[x];
+                }
+            }
+        }
+        return minimize(alphabet, table, accept, start, nfa.bytes);
+    }
+
+    private static int[] sorted(int[] scratch, int n)
+    {
+        int[] set = Arrays.copyOf(scratch, n);
+        Arrays.sort(set);
+        return set;
+    }
+
+    private static int intern(int[] set, HashMap<Nfa.StateSet, Integer> index, List<int[]> sets)
+    {
+        Nfa.StateSet key = new Nfa.StateSet(set);
+        Integer known = index.get(key);
+        if (known != null)
+        {
+            return known;
+        }
+        index.put(key, sets.size());
+        sets.add(set);
+        return sets.size() - 1;
+    }
+
+    /**
+     * Moore style partition refinement: states start out split by the rule
+     * they accept, and blocks are split by the blocks their transitions lead
+     * to until nothing changes.
+     */
+    private static Dfa minimize(Alphabet alphabet, int[] table, int[] accept, int start, boolean bytes)
+    {
+        int n = accept.length, k = alphabet.size;
+        int[] block = new int[n];
+        int blocks = split(accept, null, block, k, n);
+        for (;;)
+        {
+            int[] refined = new int[n];
+            int count = split(block, table, refined, k, n);
+            block = refined;
+            if (count == blocks)
+            {
+                break;
+            }
+            blocks = count;
+        }
+        // renumber so that the block of the dead state becomes 0
+        int dead = block[DEAD];
+        int[] id = new int[blocks], rep = new int[blocks];
+        for (int b = 0; b < blocks; b++)
+        {
+            id[b] = b == dead ? 0 : b < dead ? b + 1 : b;
+        }
+        for (int s = n - 1; s >= 0; s--)
+        {
+            rep[id[block[s]]] = s;
+        }
+        int[] t = new int[blocks * k], a = new int[blocks];
+        for (int b = 0; b < blocks; b++)
+        {
+            int s = rep[b];
+            a[b] = accept[s];
+            for (int i = 0; i < k; i++)
+            {
+                t[b * k + i] = id[block[table[s * k + i]]];
+            }
+        }
+        return new Dfa(alphabet, t, a, id[block[start]], bytes);
+    }
+
+    private static int split(int[] by, int[] table, int[] into, int k, int n)
+    {
+        HashMap<Nfa.StateSet, Integer> ids = new HashMap<>();
+        for (int s = 0; s < n; s++)
+        {
+            int[] sig = new int[table == null ? 1 : k + 1];
+            sig[0] = by[s];
+            for (int i = 1; i < sig.length; i++)
+            {
+                sig[i] = by[table[s * k + i - 1]];
+            }
+            Nfa.StateSet key = new Nfa.StateSet(sig);
+            Integer b = ids.get(key);
+            if (b == null)
+            {
+                b = ids.size();
+                ids.put(key, b);
+            }
+            into[s] = b;
+        }
+        return ids.size();
+    }
+
+    /**
+     * the transitions of state s that do not lead to the dead state, as
+     * sorted symbol ranges: lo, hi, target, lo, hi, target, ...
+     */
+    int[] edges(int s)
+    {
+        int[] bounds = alphabet.bounds, of = alphabet.ofInterval;
+        int max = bytes ? 0xFF : CharClass.MAX_CHAR;
+        int[] e = new int[bounds.length * 3];
+        int n = 0;
+        for (int i = 0; i < bounds.length; i++)
+        {
+            int t = table[s * classes + of[i]];
+            int hi = i + 1 < bounds.length ? bounds[i + 1] - 1 : max;
+            if (t == DEAD)
+            {
+                continue;
+            }
+            if (n > 0 && e[n - 1] == t && e[n - 2] == bounds[i] - 1)
+            {
+                e[n - 2] = hi;
+                continue;
+            }
+            e[n++] = bounds[i];
+            e[n++] = hi;
+            e[n++] = t;
+        }
+        return Arrays.copyOf(e, n);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean exhausted()
+    {
+        return false;
+    }
+
+    @Override
+    public Automaton fork()
+    {
+        return new Dfa(alphabet, table, accept, start, bytes);
+    }
+
+    @Override
+    public int lastRule()
+    {
+        return lastRule;
+    }
+
+    @Override
+    public int begin()
+    {
+        current = start;
+        return accept[current];
+    }
+
+    @Override
+    public int step(int c)
+    {
+        current = table[current * classes + alphabet.classOf(c)];
+        return current == DEAD ? -2 : accept[current];
+    }
+
+    @Override
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        if (bytes)
+        {
+            requireUtf8(in);
+            return matchesBytes(in);
+        }
+        return in.getEncoding() == Encoding.LATIN_1 ? matchesLatin1(in) : matchesChars(in);
+    }
+
+    @Override
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        if (bytes)
+        {
+            requireUtf8(in);
+            return readItemBytes(in);
+        }
+        return readItemChars(in);
+    }
+
+    /** a byte DFA reads UTF-8, and ASCII as its subset */
+    static void requireUtf8(FeatureInputStream in)
+    {
+        if (!readsUtf8(in))
+        {
+            throw new IllegalArgumentException("the BYTES engine reads UTF-8, not " + in.getEncoding());
+        }
+    }
+
+    /** whether the bytes of in are UTF-8, so that a byte program can run over them */
+    static boolean readsUtf8(FeatureInputStream in)
+    {
+        Encoding e = in.getEncoding();
+        return e == Encoding.GUESS || e == Encoding.UTF_8 || e == Encoding.ASCII;
+    }
+
+    /** matches ISO-8859-1 input, where a byte is a character and needs no decoding */
+    private boolean matchesLatin1(FeatureInputStream in) throws IOException
+    {
+        int s = start;
+        for (;;)
+        {
+            int c = in.read();
+            if (c == -1)
+            {
+                return accept[s] >= 0;
+            }
+            s = table[s * classes + alphabet.low[c]];
+            if (s == DEAD)
+            {
+                return false;
+            }
+        }
+    }
+
+    private boolean matchesChars(FeatureInputStream in) throws IOException
+    {
+        int s = start;
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                return accept[s] >= 0;
+            }
+            s = table[s * classes + alphabet.classOf(c)];
+            if (s == DEAD)
+            {
+                return false;
+            }
+        }
+    }
+
+    private String readItemChars(FeatureInputStream in) throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        int s = start;
+        int accepted = 0, rule = -1;
+        long end = in.position();
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                break;
+            }
+            s = table[s * classes + alphabet.classOf(c)];
+            if (s == DEAD)
+            {
+                break;
+            }
+            b.append((char) c);
+            if (accept[s] >= 0)
+            {
+                accepted = b.length();
+                rule = accept[s];
+                end = in.position();
+            }
+        }
+        in.unreadTo(end);
+        lastRule = accepted > 0 ? rule : -1;
+        return accepted > 0 ? b.substring(0, accepted) : null;
+    }
+
+    /** matches over raw UTF-8 bytes */
+    private boolean matchesBytes(FeatureInputStream in) throws IOException
+    {
+        int s = start;
+        for (;;)
+        {
+            int b = in.readByte();
+            if (b == -1)
+            {
+                return accept[s] >= 0;
+            }
+            s = table[s * classes + alphabet.low[b]];
+            if (s == DEAD)
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * reads an item over raw UTF-8 bytes and decodes only the accepted
+     * prefix; the bytes after it are unread
+     */
+    private String readItemBytes(FeatureInputStream in) throws IOException
+    {
+        byte[] buf = new byte[32];
+        int n = 0, accepted = 0, rule = -1;
+        int s = start;
+        long end = in.position();
+        for (;;)
+        {
+            int b = in.readByte();
+            if (b == -1)
+            {
+                break;
+            }
+            s = table[s * classes + alphabet.low[b]];
+            if (s == DEAD)
+            {
+                break;
+            }
+            if (n == buf.length)
+            {
+                buf = Arrays.copyOf(buf, n * 2);
+            }
+            buf[n++] = (byte) b;
+            if (accept[s] >= 0)
+            {
+                accepted = n;
+                rule = accept[s];
+                end = in.position();
+            }
+        }
+        in.unreadTo(end);
+        lastRule = accepted > 0 ? rule : -1;
+        return accepted > 0 ? new String(buf, 0, accepted, RT.UTF8) : null;
+    }
+}
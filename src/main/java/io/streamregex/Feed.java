@@ -0,0 +1,221 @@
+package io.streamregex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Runs a pattern over input that is pushed to it in chunks, for
+ * non-blocking I/O: one thread can feed any number of streams, each with a
+ * Feed of its own.
+ *
+ * A Feed holds the state of the byte DFA of its pattern and the bytes of a
+ * token that is not decided yet, nothing else; a token that spans chunks is
+ * resumed by the next feed.  With a Sink, the input is cut into the longest
+ * tokens, as readItem and RegexMapper.readNext would, and each token is
+ * reported as soon as it can not grow any longer.  Without one, the Feed
+ * only tells whether all the input fed so far matches.
+ *
+ * Expects well-formed UTF-8, like the BYTES engine.
+ */
+public final class Feed {
+
+    /** receives the tokens of a Feed */
+    public interface Sink {
+
+        /**
+         * a token of rule, or of rule -1 for a character that starts no
+         * token and is skipped; the bytes are only valid during the call
+         */
+        void token(int rule, byte[] b, int off, int len);
+    }
+
+    private final Dfa dfa;
+    private final Sink sink;
+    private int state;
+    /** the length of the longest accepted prefix of the current token, and its rule */
+    private int accepted = 0,
+            rule = -1;
+    /** the bytes of the current token that came in earlier chunks, and how many of them are stepped */
+    private byte[] pending;
+    private int size = 0,
+            scanned = 0;
+
+    Feed(Dfa dfa, Sink sink)
+    {
+        this.dfa = dfa;
+        this.sink = sink;
+        this.state = dfa.start;
+    }
+
+    /** starts over, as if nothing had been fed */
+    public void reset()
+    {
+        restart();
+        size = scanned = 0;
+    }
+
+    private void restart()
+    {
+        state = dfa.start;
+        accepted = 0;
+        rule = -1;
+    }
+
+    private int next(int b)
+    {
+        return dfa.table[state * dfa.classes + dfa.alphabet.low[b & 0xFF]];
+    }
+
+    /** steps through the remaining bytes of chunk and reports the tokens that are decided */
+    public void feed(ByteBuffer chunk)
+    {
+        if (sink == null)
+        {
+            while (chunk.hasRemaining() && state != Dfa.DEAD)
+            {
+                state = next(chunk.get());
+            }
+            chunk.position(chunk.limit());
+            return;
+        }
+        while (size > 0 && chunk.hasRemaining())
+        {
+            append(chunk.get());
+            scanPending();
+        }
+        int from = chunk.position(), to = chunk.limit();
+        chunk.position(to);
+        int start = from;
+        for (int i = from; i < to; )
+        {
+            int s = next(chunk.get(i));
+            if (s != Dfa.DEAD)
+            {
+                state = s;
+                i++;
+                if (dfa.accept[s] >= 0)
+                {
+                    accepted = i - start;
+                    rule = dfa.accept[s];
+                }
+                if (!dfa.ends[s])
+                {
+                    continue;
+                }
+            }
+            start += emit(chunk, start, to);
+            i = start;
+            restart();
+        }
+        for (int i = start; i < to; i++)
+        {
+            append(chunk.get(i));
+        }
+        scanned = size;
+    }
+
+    /** reports the token that the end of the input decides, if any */
+    public void end()
+    {
+        if (sink == null)
+        {
+            return;
+        }
+        while (size > 0)
+        {
+            consume(emit(pending, 0, size));
+            scanPending();
+        }
+        restart();
+    }
+
+    /** whether all the input fed so far matches; for a Feed without a Sink */
+    public boolean matches()
+    {
+        return dfa.accept[state] >= 0;
+    }
+
+    private void append(byte b)
+    {
+        if (pending == null)
+        {
+            pending = new byte[16];
+        }
+        else if (size == pending.length)
+        {
+            pending = Arrays.copyOf(pending, size * 2);
+        }
+        pending[size++] = b;
+    }
+
+    /** steps the pending bytes that are not stepped yet */
+    private void scanPending()
+    {
+        while (scanned < size)
+        {
+            int s = next(pending[scanned]);
+            if (s != Dfa.DEAD)
+            {
+                state = s;
+                scanned++;
+                if (dfa.accept[s] >= 0)
+                {
+                    accepted = scanned;
+                    rule = dfa.accept[s];
+                }
+                if (!dfa.ends[s])
+                {
+                    continue;
+                }
+            }
+            consume(emit(pending, 0, size));
+        }
+    }
+
+    /** drops the first n pending bytes and goes back to the start of a token */
+    private void consume(int n)
+    {
+        System.arraycopy(pending, n, pending, 0, size - n);
+        size -= n;
+        scanned = 0;
+        restart();
+    }
+
+    /**
+     * reports the accepted token at chunk[start], or the character there,
+     * straight from the array of a heap buffer; the bytes of a direct one
+     * are copied to pending, which is empty while a chunk is stepped
+     */
+    private int emit(ByteBuffer chunk, int start, int to)
+    {
+        if (chunk.hasArray())
+        {
+            return emit(chunk.array(), chunk.arrayOffset() + start, to - start);
+        }
+        int n = Math.min(accepted > 0 ? accepted : 4, to - start);
+        if (pending == null || pending.length < n)
+        {
+            pending = new byte[Math.max(16, n)];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            pending[i] = chunk.get(start + i);
+        }
+        return emit(pending, 0, n);
+    }
+
+    /** reports the accepted token at b[off], or the character there; returns its length */
+    private int emit(byte[] b, int off, int avail)
+    {
+        if (accepted > 0)
+        {
+            sink.token(rule, b, off, accepted);
+            return accepted;
+        }
+        int lead = b[off] & 0xFF;
+        int n = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        n = Math.min(n, avail);
+        sink.token(-1, b, off, n);
+        return n;
+    }
+}
@@ -0,0 +1,314 @@
+package io.streamregex;
+
+import io.Encoding;
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Finds the leftmost-longest matches of a byte Nfa anywhere in a stream.
+ * A stream that is not read as strict UTF-8, see bytewise, is searched with
+ * the char Nfa instead, one character at a time as readUtf8 decodes it;
+ * offsets are byte offsets either way.  A CharSequence is searched in place
+ * with the char Nfa, and offsets are its indices.
+ *
+ * This is a Pike VM whose threads remember the offset they started at.  A
+ * new thread starts at every offset until some thread accepts (an implicit
+ * .*? before the pattern); after that only threads that started no later
+ * than the match are kept, and the match is final when they are all dead.
+ * Each byte is stepped once, except the few read past the end of a match
+ * while it tried to grow, which are replayed for the next search.  While no
+ * thread is alive the Prefilter skips bytes that can not start a match.
+ *
+ * Empty matches are not reported.
+ */
+final class Finder implements Iterator<Match> {
+
+    private final Nfa nfa;
+    private final Prefilter prefilter;
+    private final FeatureInputStream in;
+    /** the chars searched instead of in, and the index of the next one */
+    private final CharSequence text;
+    private int at;
+    /** the bytes the symbol read last takes in the input */
+    private int width = 1;
+    private SparseSet clist, nlist;
+    /** the start offset of the thread in each state of clist and nlist */
+    private long[] cstart, nstart;
+    private final int[] stack;
+    /** the offset of the next byte */
+    private long pos = 0;
+    /** symbols to read again before the stream, replay[replayFrom..replayTo), each with its width above bit 16 */
+    private int[] replay = new int[16];
+    private int replayFrom = 0, replayTo = 0;
+    /** symbols read since the end of the current best match, as in replay */
+    private int[] ahead = new int[16];
+    private int aheadSize = 0;
+    private long bestStart, bestEnd;
+    /** the symbol read last from a stream, and the last symbol of the best match */
+    private int last = -1, bestLast = -1;
+    /** no match starts at or after this offset */
+    private long limit = Long.MAX_VALUE;
+    private Match next;
+    private boolean done = false;
+
+    /** @param nfa a byte Nfa for a stream that is read bytewise, or else a char Nfa */
+    Finder(Nfa nfa, Prefilter prefilter, FeatureInputStream in)
+    {
+        this(nfa, prefilter, in, null);
+    }
+
+    /** searches text from index from on, with a char Nfa */
+    Finder(Nfa chars, Prefilter prefilter, CharSequence text, int from)
+    {
+        this(chars, prefilter, null, text);
+        this.pos = this.at = from;
+    }
+
+    private Finder(Nfa nfa, Prefilter prefilter, FeatureInputStream in, CharSequence text)
+    {
+        this.nfa = nfa;
+        this.prefilter = prefilter;
+        this.in = in;
+        this.text = text;
+        this.clist = new SparseSet(nfa.size);
+        this.nlist = new SparseSet(nfa.size);
+        this.cstart = new long[nfa.size];
+        this.nstart = new long[nfa.size];
+        this.stack = new int[nfa.size * 2 + 1];
+    }
+
+    /**
+     * starts no match at or after offset limit, so that the search ends once
+     * it is past limit and the threads that started before it are dead
+     */
+    Finder limit(long limit)
+    {
+        this.limit = limit;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (next == null && !done)
+        {
+            try
+            {
+                next = search();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Match next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        Match m = next;
+        next = null;
+        return m;
+    }
+
+    /** adds the closure of pc to nlist for a thread that started at start; a match ends at end */
+    private void add(int pc, long start, long end)
+    {
+        int sp = 0;
+        stack[sp++] = pc;
+        while (sp > 0)
+        {
+            int x = stack[--sp];
+            if (x < 0 || nlist.contains(x))
+            {
+                continue;
+            }
+            nlist.add(x);
+            nstart[x] = start;
+            switch (nfa.op[x])
+            {
+                case Nfa.SPLIT:
+                    stack[sp++] = nfa.out1[x];
+                    stack[sp++] = nfa.out[x];
+                    break;
+                case Nfa.MATCH:
+                    if (start < end && (bestStart < 0 || start < bestStart || start == bestStart && end > bestEnd))
+                    {
+                        bestStart = start;
+                        bestEnd = end;
+                        bestLast = last;
+                        aheadSize = 0;
+                    }
+                    break;
+                default:
+            }
+        }
+    }
+
+    private void swap()
+    {
+        SparseSet t = clist;
+        clist = nlist;
+        nlist = t;
+        long[] s = cstart;
+        cstart = nstart;
+        nstart = s;
+    }
+
+    private Match search() throws IOException
+    {
+        bestStart = bestEnd = -1;
+        aheadSize = 0;
+        clist.clear();
+        for (;;)
+        {
+            if (bestStart < 0)
+            {
+                if (clist.size == 0 && replayFrom == replayTo && pos < limit)
+                {
+                    skip();
+                }
+                if (pos >= limit && clist.size == 0)
+                {
+                    return null;
+                }
+                if (pos < limit && !midPair())
+                {
+                    // the new thread goes last, so threads stay in order of their start
+                    nlist.clear();
+                    for (int i = 0; i < clist.size; i++)
+                    {
+                        int x = clist.dense[i];
+                        nlist.add(x);
+                        nstart[x] = cstart[x];
+                    }
+                    add(nfa.start, pos, pos);
+                    swap();
+                }
+            }
+            if (clist.size == 0 && bestStart >= 0)
+            {
+                return found();
+            }
+            int b;
+            if (replayFrom < replayTo)
+            {
+                b = replay[replayFrom] & 0xFFFF;
+                width = replay[replayFrom++] >>> 16;
+            }
+            else if ((b = read()) == -1)
+            {
+                return bestStart >= 0 ? found() : null;
+            }
+            pos += width;
+            last = b;
+            if (bestStart >= 0)
+            {
+                if (aheadSize == ahead.length)
+                {
+                    ahead = Arrays.copyOf(ahead, aheadSize * 2);
+                }
+                ahead[aheadSize++] = b | width << 16;
+            }
+            nlist.clear();
+            for (int i = 0; i < clist.size; i++)
+            {
+                int x = clist.dense[i];
+                if (bestStart >= 0 && cstart[x] > bestStart)
+                {
+                    continue;
+                }
+                if (nfa.in(x, b))
+                {
+                    add(nfa.out[x], cstart[x], pos);
+                }
+            }
+            swap();
+        }
+    }
+
+    /** skips the input that can not start a match */
+    private void skip() throws IOException
+    {
+        if (text == null)
+        {
+            pos += nfa.bytes ? prefilter.skipBytes(in, limit - pos) : prefilter.skipChars(in, limit - pos);
+            return;
+        }
+        at = prefilter.skip(text, at);
+        pos = at;
+    }
+
+    /** the next symbol of the input, or -1 at its end; sets width */
+    private int read() throws IOException
+    {
+        if (text != null)
+        {
+            return at < text.length() ? text.charAt(at++) : -1;
+        }
+        if (nfa.bytes)
+        {
+            return in.readByte();
+        }
+        long p = in.position();
+        int c = in.readUtf8();
+        width = (int) (in.position() - p);
+        return c;
+    }
+
+    /**
+     * whether a stream is searched a byte at a time, with the byte Nfa: its
+     * bytes are strict UTF-8 or ASCII, which the byte Nfa reads as readUtf8
+     * decodes them.  GUESS input may fall back to ISO-8859-1, so it is
+     * searched as characters, like the other encodings.
+     */
+    static boolean bytewise(FeatureInputStream in)
+    {
+        Encoding e = in.getEncoding();
+        return e == Encoding.UTF_8 || e == Encoding.ASCII;
+    }
+
+    /** reports the best match and queues the symbols read past its end for the next search */
+    private Match found()
+    {
+        if (text != null)
+        {
+            at = (int) bestEnd;
+            pos = bestEnd;
+            clist.clear();
+            return new Match(bestStart, bestEnd);
+        }
+        int rest = replayTo - replayFrom;
+        int[] r = new int[Math.max(16, aheadSize + rest)];
+        System.arraycopy(ahead, 0, r, 0, aheadSize);
+        System.arraycopy(replay, replayFrom, r, aheadSize, rest);
+        replay = r;
+        replayFrom = 0;
+        replayTo = aheadSize + rest;
+        pos = bestEnd;
+        last = bestLast;
+        clist.clear();
+        return new Match(bestStart, bestEnd);
+    }
+
+    /** whether the next symbol is the low surrogate of a pair, where no match starts */
+    private boolean midPair()
+    {
+        if (text != null)
+        {
+            return at > 0 && at < text.length() && Character.isLowSurrogate(text.charAt(at))
+                    && Character.isHighSurrogate(text.charAt(at - 1));
+        }
+        return !nfa.bytes && Character.isHighSurrogate((char) last);
+    }
+}
@@ -0,0 +1,292 @@
+package io.streamregex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The lanes of the LANES engine, stepped through the SRNode graph of a
+ * pattern one character at a time.
+ *
+ * A lane is at a character node, with the number of times the node has
+ * matched, the groups it is in with the number of times each has been gone
+ * through, and the alternative of the root it started in.  A count past
+ * what the bounds of its node tell apart is kept at the lower bound, so
+ * lanes that go the same way are equal and are kept once.  After each
+ * step, accepted is the first alternative of the root that matches all the
+ * characters stepped over, as the rule that was mapped first wins.
+ *
+ * The walk from a lane to the lanes after it goes through as many group
+ * iterations as the input allows, so it is a loop over a stack of work
+ * rather than recursion, which a bounded group like (a?){5000} would
+ * overflow.
+ */
+final class Lanes {
+
+    private static final int ENTER = 0, ITERATE = 1, EXIT = 2;
+
+    private final SRNode root;
+    private List<Lane> lanes = new ArrayList<>(),
+            next = new ArrayList<>();
+    /** the lanes and group iterations entered in this step */
+    private final Set<Lane> seen = new HashSet<>();
+    /** the enter, iterate and exit calls to make, done by walk */
+    private final ArrayDeque<Work> work = new ArrayDeque<>();
+    /** the alternative of the root that accepts, or -1 */
+    int accepted = -1;
+
+    Lanes(SRNode root)
+    {
+        this.root = root;
+    }
+
+    /** starts over from the root, before the first character */
+    void begin()
+    {
+        lanes.clear();
+        seen.clear();
+        accepted = -1;
+        push(ENTER, root, 0, null, -1);
+        walk(lanes);
+    }
+
+    /** steps the lanes over c; returns false when c is not matched */
+    boolean step(int c)
+    {
+        next.clear();
+        seen.clear();
+        accepted = -1;
+        for (Lane lane : lanes)
+        {
+            if (lane.count < lane.node.max && lane.node.x.in(c))
+            {
+                matched(lane.node, lane.count + 1, lane.frame, lane.alt, next);
+            }
+        }
+        walk(next);
+        List<Lane> t = lanes;
+        lanes = next;
+        next = t;
+        return accepted >= 0 || alive();
+    }
+
+    /** whether a lane is left to step over more characters */
+    boolean alive()
+    {
+        return !lanes.isEmpty();
+    }
+
+    /** the node that starts alternative alt of the root */
+    SRNode alternative(int alt)
+    {
+        return root.any.get(alt);
+    }
+
+    /** n has matched count times */
+    private void matched(SRNode n, int count, Frame f, int alt, List<Lane> out)
+    {
+        count = n.max == Integer.MAX_VALUE ? Math.min(count, n.min) : count;
+        if (count < n.max)
+        {
+            add(new Lane(n, count, f, alt), out);
+        }
+        if (count >= n.min)
+        {
+            push(ENTER, n.next, 0, f, alt);
+        }
+    }
+
+    /** does the pushed work, and the work it pushes, until there is none */
+    private void walk(List<Lane> out)
+    {
+        while (!work.isEmpty())
+        {
+            Work w = work.pop();
+            switch (w.kind)
+            {
+                case ENTER:
+                    enter(w.node, w.frame, w.alt, out);
+                    break;
+                case ITERATE:
+                    iterate(w.node, w.count, w.frame, w.alt);
+                    break;
+                default:
+                    exit(w.frame, w.alt);
+            }
+        }
+    }
+
+    private void push(int kind, SRNode node, int count, Frame f, int alt)
+    {
+        work.push(new Work(kind, node, count, f, alt));
+    }
+
+    /** enters node n of the sequence of frame f, or ends the sequence at null */
+    private void enter(SRNode n, Frame f, int alt, List<Lane> out)
+    {
+        if (n == null)
+        {
+            push(EXIT, null, 0, f, alt);
+            return;
+        }
+        if (n.max > 0)
+        {
+            if (n.GROUP)
+            {
+                push(ITERATE, n, 0, f, alt);
+            }
+            else
+            {
+                add(new Lane(n, 0, f, alt), out);
+            }
+        }
+        if (n.min == 0)
+        {
+            push(ENTER, n.next, 0, f, alt);
+        }
+    }
+
+    /** goes through group g once more, having been through it done times */
+    private void iterate(SRNode g, int done, Frame f, int alt)
+    {
+        if (!seen.add(new Lane(g, done, f, alt)))
+        {
+            return;
+        }
+        Frame in = new Frame(g, done, f);
+        if (g.any == null)
+        {
+            push(EXIT, null, 0, in, alt);
+            return;
+        }
+        for (int i = 0; i < g.any.size(); i++)
+        {
+            push(ENTER, g.any.get(i), 0, in, g == root && f == null ? i : alt);
+        }
+    }
+
+    /** ends a sequence in the group of frame f, or the whole pattern at null */
+    private void exit(Frame f, int alt)
+    {
+        if (f == null)
+        {
+            accepted = accepted < 0 ? alt : Math.min(accepted, alt);
+            return;
+        }
+        SRNode g = f.group;
+        int done = g.max == Integer.MAX_VALUE ? Math.min(f.done + 1, g.min) : f.done + 1;
+        if (done < g.max)
+        {
+            push(ITERATE, g, done, f.parent, alt);
+        }
+        if (done >= g.min)
+        {
+            push(ENTER, g.next, 0, f.parent, alt);
+        }
+    }
+
+    private void add(Lane lane, List<Lane> out)
+    {
+        if (seen.add(lane))
+        {
+            out.add(lane);
+        }
+    }
+
+    /** a call of enter, iterate or exit that is still to be made */
+    private static final class Work {
+
+        final int kind;
+        final SRNode node;
+        final int count;
+        final Frame frame;
+        final int alt;
+
+        Work(int kind, SRNode node, int count, Frame frame, int alt)
+        {
+            this.kind = kind;
+            this.node = node;
+            this.count = count;
+            this.frame = frame;
+            this.alt = alt;
+        }
+    }
+
+    /** a group being gone through, for the second time when done is 1 */
+    private static final class Frame {
+
+        final SRNode group;
+        final int done;
+        final Frame parent;
+        private final int hash;
+
+        Frame(SRNode group, int done, Frame parent)
+        {
+            this.group = group;
+            this.done = done;
+            this.parent = parent;
+            this.hash = (System.identityHashCode(group) * 31 + done) * 31 + Objects.hashCode(parent);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Frame))
+            {
+                return false;
+            }
+            Frame a = this, b = (Frame) obj;
+            for (; a != b; a = a.parent, b = b.parent)
+            {
+                if (a == null || b == null || a.hash != b.hash || a.group != b.group || a.done != b.done)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** a lane at a character node, or a group iteration that has been entered */
+    private static final class Lane {
+
+        final SRNode node;
+        final int count;
+        final Frame frame;
+        final int alt;
+
+        Lane(SRNode node, int count, Frame frame, int alt)
+        {
+            this.node = node;
+            this.count = count;
+            this.frame = frame;
+            this.alt = alt;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((System.identityHashCode(node) * 31 + count) * 31 + Objects.hashCode(frame)) * 31 + alt;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Lane))
+            {
+                return false;
+            }
+            Lane x = (Lane) obj;
+            return node == x.node && count == x.count && alt == x.alt && Objects.equals(frame, x.frame);
+        }
+    }
+}
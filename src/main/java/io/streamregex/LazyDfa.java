@@ -0,0 +1,244 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A DFA that is built on demand from an Nfa.
+ *
+ * Each DFA state stands for a set of NFA states (subset construction), and a
+ * transition is computed the first time a state sees an input class (see
+ * Alphabet); after that it is a single table lookup.  When more than budget states would be needed
+ * the cache is flushed and the DFA is marked exhausted, so that the owner
+ * can fall back to the lane simulation on its next call.
+ */
+final class LazyDfa implements Automaton {
+
+    static final int DEAD = 0, UNKNOWN = -1;
+    static final int DEFAULT_BUDGET = 10000;
+
+    final Nfa nfa;
+    final Alphabet alphabet;
+    private final int classes;
+    final int budget;
+    private boolean exhausted = false;
+    private int lastRule = -1;
+    /** the closure of the start state of the Nfa, sorted */
+    private final int[] startSet;
+    int start;
+    /** the state of begin/step */
+    private int current;
+
+    private final HashMap<Nfa.StateSet, Integer> index = new HashMap<>();
+    private int[][] sets = new int[16][];
+    private int[] accept = new int[16];
+    private int[] trans;
+    private int count = 0;
+
+    private final int[] mark, stack, scratch;
+    private int gen = 0;
+
+    LazyDfa(Nfa nfa, int budget)
+    {
+        this(nfa, Alphabet.of(nfa), null, budget);
+    }
+
+    /** a LazyDfa with no states yet, over the alphabet and start set of another */
+    private LazyDfa(Nfa nfa, Alphabet alphabet, int[] startSet, int budget)
+    {
+        this.nfa = nfa;
+        this.alphabet = alphabet;
+        this.classes = alphabet.size;
+        this.trans = new int[16 * classes];
+        this.budget = Math.max(budget, 2);
+        this.mark = new int[nfa.size];
+        this.stack = new int[nfa.size * 2 + 1];
+        this.scratch = new int[nfa.size];
+        if (startSet == null)
+        {
+            gen++;
+            startSet = Arrays.copyOf(scratch, nfa.closure(nfa.start, scratch, 0, mark, gen, stack));
+            Arrays.sort(startSet);
+        }
+        this.startSet = startSet;
+        init();
+    }
+
+    private void init()
+    {
+        index.clear();
+        Arrays.fill(trans, UNKNOWN);
+        count = 0;
+        intern(new int[0]);
+        start = intern(startSet);
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public boolean exhausted()
+    {
+        return exhausted;
+    }
+
+    /**
+     * shares the Nfa, its Alphabet and the start set, which do not change;
+     * only the cache of states, which is built as the input asks for it, and
+     * the working arrays that build it are new
+     */
+    @Override
+    public Automaton fork()
+    {
+        return new LazyDfa(nfa, alphabet, startSet, budget);
+    }
+
+    @Override
+    public int lastRule()
+    {
+        return lastRule;
+    }
+
+    @Override
+    public int begin()
+    {
+        current = start;
+        return accept[current];
+    }
+
+    @Override
+    public int step(int c)
+    {
+        current = next(current, c);
+        return current == DEAD ? -2 : accept[current];
+    }
+
+    boolean accepting(int s)
+    {
+        return accept[s] >= 0;
+    }
+
+    int rule(int s)
+    {
+        return accept[s];
+    }
+
+    int next(int s, int c)
+    {
+        int k = alphabet.classOf(c);
+        int t = trans[s * classes + k];
+        return t != UNKNOWN ? t : compute(s, k);
+    }
+
+    private int compute(int s, int k)
+    {
+        int c = alphabet.rep[k];
+        int[] from = sets[s];
+        int n = 0;
+        gen++;
+        for (int x : from)
+        {
+            if (nfa.in(x, c))
+            {
+                n = nfa.closure(nfa.out[x], scratch, n, mark, gen, stack);
+            }
+        }
+        int[] to = Arrays.copyOf(scratch, n);
+        Arrays.sort(to);
+        Integer known = index.get(new Nfa.StateSet(to));
+        if (known == null && count >= budget)
+        {
+            exhausted = true;
+            init();
+            s = intern(from);
+        }
+        int t = known != null ? known : intern(to);
+        trans[s * classes + k] = t;
+        return t;
+    }
+
+    private int intern(int[] set)
+    {
+        Nfa.StateSet key = new Nfa.StateSet(set);
+        Integer known = index.get(key);
+        if (known != null)
+        {
+            return known;
+        }
+        if (count == sets.length)
+        {
+            sets = Arrays.copyOf(sets, count * 2);
+            accept = Arrays.copyOf(accept, count * 2);
+            trans = Arrays.copyOf(trans, count * 2 * classes);
+            Arrays.fill(trans, count * classes, trans.length, UNKNOWN);
+        }
+        int rule = -1;
+        for (int x : set)
+        {
+            if (nfa.op[x] == Nfa.MATCH && (rule == -1 || nfa.out[x] < rule))
+            {
+                rule = nfa.out[x];
+            }
+        }
+        sets[count] = set;
+        accept[count] = rule;
+        index.put(key, count);
+        return count++;
+    }
+
+    @Override
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        int s = start;
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                return accept[s] >= 0;
+            }
+            s = next(s, c);
+            if (s == DEAD)
+            {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        int s = start;
+        int accepted = 0, rule = -1;
+        long end = in.position();
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                break;
+            }
+            s = next(s, c);
+            if (s == DEAD)
+            {
+                break;
+            }
+            b.append((char) c);
+            if (accept[s] >= 0)
+            {
+                accepted = b.length();
+                rule = accept[s];
+                end = in.position();
+            }
+        }
+        in.unreadTo(end);
+        lastRule = accepted > 0 ? rule : -1;
+        return accepted > 0 ? b.substring(0, accepted) : null;
+    }
+}
@@ -0,0 +1,170 @@
+package io.streamregex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the Java source of a lexer for a list of rules, as RegexMapper
+ * would map them: the longest token wins, and on a tie the rule listed
+ * first.
+ *
+ * The rules are compiled into a minimized DFA here, at build time; the
+ * generated class holds the DFA as a switch over states with range tests
+ * over characters and returns int token ids.  It has no dependencies and
+ * does no compilation, reflection or allocation when it runs.  See
+ * io.streamregex.gen for the annotation processor that calls this.
+ */
+public final class LexerGenerator {
+
+    private final StringBuilder out = new StringBuilder();
+
+    private LexerGenerator()
+    {
+    }
+
+    /**
+     * @param packageName the package of the lexer, or "" for none
+     * @param origin what the rules came from, for the header comment
+     * @param names the token names, which become int constants
+     * @param patterns the pattern of each token
+     */
+    public static String generate(String packageName, String className, String origin,
+            List<String> names, List<String> patterns)
+    {
+        if (names.size() != patterns.size() || names.isEmpty())
+        {
+            throw new IllegalArgumentException("expected one pattern per token name");
+        }
+        List<SRNode> roots = new ArrayList<>();
+        for (String p : patterns)
+        {
+            roots.add(new StreamRegex(p).root);
+        }
+        String all = String.join("|", patterns);
+        Dfa dfa = Dfa.compile(Nfa.compileUncounted(roots, all), LazyDfa.DEFAULT_BUDGET, all);
+        for (String n : names)
+        {
+            if (n.equals("EOF") || n.equals("ERROR") || names.indexOf(n) != names.lastIndexOf(n))
+            {
+                throw new CompileEx(all, "token name " + n + " is reserved or used twice");
+            }
+        }
+        LexerGenerator g = new LexerGenerator();
+        g.write(packageName, className, origin, names, dfa);
+        return g.out.toString();
+    }
+
+    private void line(String s)
+    {
+        out.append(s).append('\n');
+    }
+
+    private void write(String packageName, String className, String origin, List<String> names, Dfa dfa)
+    {
+        line("// Generated by " + LexerGenerator.class.getName() + " from " + origin + "; do not edit.");
+        if (!packageName.isEmpty())
+        {
+            line("package " + packageName + ";");
+        }
+        line("");
+        line("/** A lexer for the rules of " + origin + ". */");
+        line("public final class " + className + " {");
+        line("");
+        for (int i = 0; i < names.size(); i++)
+        {
+            line("    public static final int " + names.get(i) + " = " + i + ";");
+        }
+        line("    /** returned by next at the end of the input */");
+        line("    public static final int EOF = -1;");
+        line("    /** returned by next when no token matches; the character is skipped */");
+        line("    public static final int ERROR = -2;");
+        line("");
+        line("    private static final int START = " + dfa.start + ";");
+        StringBuilder accept = new StringBuilder();
+        for (int s = 0; s < dfa.size; s++)
+        {
+            accept.append(s > 0 ? ", " : "").append(dfa.accept[s]);
+        }
+        line("    private static final int[] ACCEPT = { " + accept + " };");
+        line("");
+        line("    private final CharSequence text;");
+        line("    private int pos = 0, start = 0;");
+        line("");
+        line("    public " + className + "(CharSequence text)");
+        line("    {");
+        line("        this.text = text;");
+        line("    }");
+        line("");
+        line("    /** reads the longest token at the current position and returns its id */");
+        line("    public int next()");
+        line("    {");
+        line("        start = pos;");
+        line("        if (pos >= text.length())");
+        line("        {");
+        line("            return EOF;");
+        line("        }");
+        line("        int s = START, p = pos, end = -1, token = ERROR;");
+        line("        while (p < text.length() && (s = step(s, text.charAt(p))) != 0)");
+        line("        {");
+        line("            p++;");
+        line("            if (ACCEPT[s] >= 0)");
+        line("            {");
+        line("                end = p;");
+        line("                token = ACCEPT[s];");
+        line("            }");
+        line("        }");
+        line("        pos = end >= 0 ? end : pos + 1;");
+        line("        return token;");
+        line("    }");
+        line("");
+        line("    /** the offset where the last token starts */");
+        line("    public int start() { return start; }");
+        line("    /** the offset after the last token */");
+        line("    public int end() { return pos; }");
+        line("    /** the text of the last token */");
+        line("    public String token() { return text.subSequence(start, pos).toString(); }");
+        line("");
+        line("    private static int step(int s, char c)");
+        line("    {");
+        line("        switch (s)");
+        line("        {");
+        for (int s = 1; s < dfa.size; s++)
+        {
+            int[] e = dfa.edges(s);
+            if (e.length == 0)
+            {
+                continue;
+            }
+            line("            case " + s + ":");
+            for (int i = 0; i < e.length; i += 3)
+            {
+                if (e[i] == e[i + 1])
+                {
+                    line("                if (c == " + chr(e[i]) + ") return " + e[i + 2] + ";");
+                    continue;
+                }
+                if (e[i] > 0)
+                {
+                    line("                if (c < " + chr(e[i]) + ") return 0;");
+                }
+                line("                if (c <= " + chr(e[i + 1]) + ") return " + e[i + 2] + ";");
+            }
+            line("                return 0;");
+        }
+        line("            default:");
+        line("                return 0;");
+        line("        }");
+        line("    }");
+        line("}");
+    }
+
+    /** a char literal for c, or a hex int for the characters a plain char literal can not show */
+    private static String chr(int c)
+    {
+        if (c >= 0x20 && c < 0x7F && c != '\'' && c != '\\')
+        {
+            return "'" + (char) c + "'";
+        }
+        return String.format("0x%04x", c);
+    }
+}
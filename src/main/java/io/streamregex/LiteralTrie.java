@@ -0,0 +1,183 @@
+package io.streamregex;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The goto function of an Aho-Corasick automaton over plain literals, kept
+ * in a double array: the child of s on character code k is t = base[s] + k
+ * when check[t] == s.  A step is two array reads whatever the number of
+ * literals, so keyword rules cost the same for ten keywords or ten thousand.
+ *
+ * Characters that occur in no literal have code 0 and fail at once.  Tokens
+ * are read anchored, so no failure links are kept.
+ */
+final class LiteralTrie {
+
+    static final int ROOT = 0, FAIL = -1;
+
+    private int[] base = new int[64], check = new int[64], rule = new int[64];
+    /** codes of the characters below 128, and the sorted characters above */
+    private final char[] ascii = new char[128];
+    private final int[] wide;
+    private int nodes = 1;
+
+    /** literals[i] is the literal of rule ids[i]; a literal seen twice keeps its first rule */
+    LiteralTrie(String[] literals, int[] ids)
+    {
+        TreeSet<Integer> chars = new TreeSet<>();
+        for (String s : literals)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                chars.add((int) s.charAt(i));
+            }
+        }
+        int code = 1;
+        int[] w = new int[chars.size()];
+        int n = 0;
+        for (int c : chars)
+        {
+            if (c < 128)
+            {
+                ascii[c] = (char) code++;
+            }
+            else
+            {
+                w[n++] = c;
+            }
+        }
+        wide = Arrays.copyOf(w, n);
+        Node root = new Node();
+        for (int i = 0; i < literals.length; i++)
+        {
+            Node x = root;
+            for (int k = 0; k < literals[i].length(); k++)
+            {
+                x = x.kids.computeIfAbsent(code(literals[i].charAt(k)), c -> new Node());
+            }
+            if (x.rule == -1)
+            {
+                x.rule = ids[i];
+            }
+        }
+        build(root);
+    }
+
+    private void build(Node root)
+    {
+        Arrays.fill(check, FAIL);
+        check[ROOT] = -2;
+        rule[ROOT] = root.rule;
+        int free = 1;
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty())
+        {
+            Node x = queue.poll();
+            if (x.kids.isEmpty())
+            {
+                continue;
+            }
+            int first = x.kids.firstKey(), last = x.kids.lastKey();
+            while (free < check.length && check[free] != FAIL)
+            {
+                free++;
+            }
+            int b = Math.max(free - first, 0);
+            for (;; b++)
+            {
+                grow(b + last + 1);
+                boolean fits = true;
+                for (int k : x.kids.keySet())
+                {
+                    if (check[b + k] != FAIL)
+                    {
+                        fits = false;
+                        break;
+                    }
+                }
+                if (fits)
+                {
+                    break;
+                }
+            }
+            base[x.index] = b;
+            for (Map.Entry<Integer, Node> e : x.kids.entrySet())
+            {
+                int t = b + e.getKey();
+                Node kid = e.getValue();
+                kid.index = t;
+                check[t] = x.index;
+                rule[t] = kid.rule;
+                nodes++;
+                queue.add(kid);
+            }
+        }
+    }
+
+    private void grow(int n)
+    {
+        if (n > check.length)
+        {
+            int m = Math.max(n, check.length * 2), old = check.length;
+            base = Arrays.copyOf(base, m);
+            check = Arrays.copyOf(check, m);
+            rule = Arrays.copyOf(rule, m);
+            Arrays.fill(check, old, m, FAIL);
+        }
+    }
+
+    private int code(int c)
+    {
+        if (c < 128)
+        {
+            return ascii[c];
+        }
+        int i = Arrays.binarySearch(wide, c);
+        return i < 0 ? 0 : 129 + i;
+    }
+
+    /** the child of s on character c, or FAIL */
+    int next(int s, int c)
+    {
+        int k = code(c);
+        if (k == 0)
+        {
+            return FAIL;
+        }
+        int t = base[s] + k;
+        return t < check.length && check[t] == s ? t : FAIL;
+    }
+
+    /** the rule id of the literal ending at s, or -1 */
+    int rule(int s)
+    {
+        return rule[s];
+    }
+
+    /** the number of trie nodes */
+    int size()
+    {
+        return nodes;
+    }
+
+    /** the one nonempty string that the pattern below root matches, or null */
+    static String literal(SRNode root)
+    {
+        Prefilter.Literal lit = new Prefilter.Literal();
+        lit.node(root);
+        lit.end();
+        return lit.exact && lit.prefix.length() > 0 ? lit.prefix : null;
+    }
+
+    private static final class Node {
+
+        final TreeMap<Integer, Node> kids = new TreeMap<>();
+        int rule = -1;
+        int index = ROOT;
+    }
+}
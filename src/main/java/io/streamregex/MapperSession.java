@@ -0,0 +1,137 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import struct.Duple;
+import java.io.IOException;
+
+/**
+ * A session of a RegexMapper: reads tokens and maps them, with the match
+ * state of its own, so that threads can share one RegexMapper.  Literal
+ * rules are stepped in a LiteralTrie along with the automaton.
+ *
+ * @param <T> the type of objects referenced
+ */
+public final class MapperSession<T> extends Session {
+
+    final RegexMapper<T> mapper;
+    /** the literal rules, or null when the automaton has all rules */
+    private final LiteralTrie trie;
+    /** the span of readItem with the trie */
+    private final TokenSpan scratch = new TokenSpan();
+    /** the state of begin and step: the rule of the automaton, and the trie node */
+    private int automatonRule,
+            trieState;
+
+    MapperSession(RegexMapper<T> mapper, Automaton automaton, LiteralTrie trie)
+    {
+        super(mapper, automaton);
+        this.mapper = mapper;
+        this.trie = trie;
+    }
+
+    public Duple<String, T> readNext(FeatureInputStream in) throws IOException
+    {
+        return mapping(readItem(in));
+    }
+
+    /** reads the longest token, of the automaton or of the trie, see Session.readItem */
+    @Override
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        if (trie == null || !useAutomaton())
+        {
+            return super.readItem(in);
+        }
+        return readToken(in, scratch) ? scratch.toString() : null;
+    }
+
+    /** whether all of in is a token of the automaton or of the trie */
+    @Override
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        if (trie == null || !useAutomaton())
+        {
+            return super.matches(in);
+        }
+        int r = begin();
+        for (int c; (c = in.readUtf8()) != -1; )
+        {
+            if ((r = step(c)) == -2)
+            {
+                return false;
+            }
+        }
+        return r >= 0;
+    }
+
+    /**
+     * reads the next token into token, without building a String or a Duple;
+     * getReferend(token.rule()) is its mapping
+     *
+     * @return false if no token could be read
+     */
+    public boolean readNext(FeatureInputStream in, TokenSpan token) throws IOException
+    {
+        return readToken(in, token);
+    }
+
+    /** reads the next token of s at from like readNext(in), with s read in place */
+    public Duple<String, T> readNext(CharSequence s, int from)
+    {
+        return mapping(readItem(s, from));
+    }
+
+    /** reads the next token at a[off] within the len chars from there on */
+    public Duple<String, T> readNext(char[] a, int off, int len)
+    {
+        return mapping(readItem(a, off, len));
+    }
+
+    /** reads the next token at b[off] within the len UTF-8 bytes from there on; itemEnd tells where it ends */
+    public Duple<String, T> readNext(byte[] b, int off, int len)
+    {
+        return mapping(readItem(b, off, len));
+    }
+
+    private Duple<String, T> mapping(String s)
+    {
+        return new Duple(s, s == null ? null : getReferendFromLastRead());
+    }
+
+    /** the object mapped to a rule id */
+    public T getReferend(int rule)
+    {
+        return mapper.getReferend(rule);
+    }
+
+    public T getReferendFromLastRead()
+    {
+        return mapper.referend(this);
+    }
+
+    @Override
+    int begin()
+    {
+        automatonRule = automaton.begin();
+        trieState = LiteralTrie.ROOT;
+        return automatonRule;
+    }
+
+    /** steps both the automaton and the trie: the longer item wins, the lower rule id on a tie */
+    @Override
+    int step(int c)
+    {
+        if (trie == null)
+        {
+            return automaton.step(c);
+        }
+        automatonRule = automatonRule == -2 ? -2 : automaton.step(c);
+        trieState = trieState == LiteralTrie.FAIL ? trieState : trie.next(trieState, c);
+        if (automatonRule == -2 && trieState == LiteralTrie.FAIL)
+        {
+            return -2;
+        }
+        int r = automatonRule, k = trieState == LiteralTrie.FAIL ? -1 : trie.rule(trieState);
+        return r < 0 ? k : k < 0 ? r : Math.min(r, k);
+    }
+}
@@ -0,0 +1,37 @@
+package io.streamregex;
+
+/**
+ * A match found by StreamRegex.find, as byte offsets counted from where the
+ * search started: bytes start..end-1 of the input.
+ */
+public final class Match {
+
+    public final long start, end;
+
+    public Match(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length()
+    {
+        return end - start;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof Match)) return false;
+        Match b = (Match) obj;
+        return start == b.start && end == b.end;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override public String toString() { return String.format("<%d,%d>", start, end); }
+}
@@ -0,0 +1,429 @@
+package io.streamregex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A flat Thompson NFA compiled from an SRNode tree.
+ *
+ * States are plain ints.  A CHAR state consumes one character of its class
+ * and moves to out, a SPLIT state moves to out and out1 without consuming
+ * anything (out1 may be -1), and a MATCH state accepts.  For MATCH states
+ * out holds the rule id.
+ *
+ * A byte NFA (see toUtf8) runs over UTF-8 bytes instead of characters; its
+ * BYTE states consume one byte in lo..hi, packed into out1 as lo &lt;&lt; 8 | hi.
+ *
+ * A counting NFA keeps a large bounded repetition of one character class as
+ * a single COUNT state instead of unrolling it: the state consumes out1 to
+ * upper characters of its class and then moves to out.  Only the Pike VM
+ * runs COUNT states, with a counter per state.
+ */
+final class Nfa {
+
+    static final int CHAR = 0, SPLIT = 1, MATCH = 2, BYTE = 3, COUNT = 4;
+    static final int MAX_STATES = 1 << 20;
+    /** repetitions of a character class up to this many are unrolled even when counting */
+    static final int COUNT_LIMIT = 32;
+
+    int[] op = new int[16];
+    CharClass[] cls = new CharClass[16];
+    int[] out = new int[16];
+    int[] out1 = new int[16];
+    /** the most characters a COUNT state consumes */
+    int[] upper = new int[16];
+    int size = 0;
+    int start;
+    boolean bytes = false;
+    /** compile large repetitions into COUNT states */
+    private boolean counting = false;
+    /** the number of COUNT states */
+    int counters = 0;
+
+    static Nfa compile(SRNode root)
+    {
+        return compile(Collections.singletonList(root));
+    }
+
+    /**
+     * compiles a union of the patterns, where roots[i] accepts rule id i; a
+     * null root stands for a rule that is matched elsewhere
+     */
+    static Nfa compile(List<SRNode> roots)
+    {
+        return compile(roots, false);
+    }
+
+    /** @param counting compiles large repetitions of a character class into COUNT states */
+    static Nfa compile(List<SRNode> roots, boolean counting)
+    {
+        Nfa nfa = new Nfa();
+        nfa.counting = counting;
+        int s = -1;
+        for (int i = roots.size() - 1; i >= 0; i--)
+        {
+            if (roots.get(i) == null)
+            {
+                continue;
+            }
+            int r = nfa.chain(roots.get(i), nfa.add(MATCH, null, i, -1));
+            s = s == -1 ? r : nfa.add(SPLIT, null, r, s);
+        }
+        nfa.start = s;
+        return nfa;
+    }
+
+    /**
+     * compiles the rules for a program that can not count, like the byte
+     * program and the Finder
+     *
+     * @throws CompileEx if a repetition would need a COUNT state
+     */
+    static Nfa compileUncounted(List<SRNode> roots, String pattern)
+    {
+        Nfa nfa = compile(roots, true);
+        if (nfa.counters > 0)
+        {
+            throw new CompileEx(pattern, "a repetition of a character class more than " + COUNT_LIMIT
+                    + " times is only counted by the automaton engines, not by find, seek, feed or the parallel scans");
+        }
+        return nfa;
+    }
+
+    int add(int op, CharClass cc, int out, int out1)
+    {
+        if (size == this.op.length)
+        {
+            if (size >= MAX_STATES)
+            {
+                throw new RuntimeException("pattern needs more than " + MAX_STATES + " NFA states");
+            }
+            int n = size * 2;
+            this.op = Arrays.copyOf(this.op, n);
+            this.cls = Arrays.copyOf(this.cls, n);
+            this.out = Arrays.copyOf(this.out, n);
+            this.out1 = Arrays.copyOf(this.out1, n);
+            this.upper = Arrays.copyOf(this.upper, n);
+        }
+        this.op[size] = op;
+        this.cls[size] = cc;
+        this.out[size] = out;
+        this.out1[size] = out1;
+        return size++;
+    }
+
+    /** the largest symbol this NFA reads */
+    int maxSymbol()
+    {
+        return bytes ? 0xFF : CharClass.MAX_CHAR;
+    }
+
+    /** tells if state x consumes symbol c */
+    boolean in(int x, int c)
+    {
+        switch (op[x])
+        {
+            case CHAR:
+                return cls[x].in(c);
+            case BYTE:
+                return out1[x] >> 8 <= c && c <= (out1[x] & 0xFF);
+            default:
+                return false;
+        }
+    }
+
+    /** the symbols state x consumes, as sorted {lo, hi} pairs */
+    int[] ranges(int x)
+    {
+        switch (op[x])
+        {
+            case CHAR:
+                return cls[x].ranges();
+            case BYTE:
+                return new int[] { out1[x] >> 8, out1[x] & 0xFF };
+            default:
+                return new int[0];
+        }
+    }
+
+    /**
+     * Builds the equivalent byte NFA, where every CHAR state is replaced by
+     * the UTF-8 byte sequences of its class.  States keep their indexes, so
+     * a CHAR state x becomes a SPLIT into its byte sequences.
+     *
+     * UTF-8 has no surrogates: a character outside the BMP is one 4-byte
+     * sequence where the char NFA reads a high and a low surrogate.  So the
+     * surrogates of a class are left out, and a CHAR state that reads high
+     * surrogates also gets the 4-byte sequences of the pairs it makes with
+     * the low surrogates of each CHAR state that can follow it, continuing
+     * where that state does.
+     */
+    Nfa toUtf8()
+    {
+        Nfa b = new Nfa();
+        b.bytes = true;
+        for (int x = 0; x < size; x++)
+        {
+            boolean ch = op[x] == CHAR;
+            b.add(ch ? SPLIT : op[x], null, ch ? -1 : out[x], ch ? -1 : out1[x]);
+        }
+        int[] set = new int[size], mark = new int[size], stack = new int[size * 2 + 1];
+        int gen = 0;
+        for (int x = 0; x < size; x++)
+        {
+            if (op[x] == CHAR)
+            {
+                int[] r = cls[x].ranges();
+                int entry = -1;
+                for (int i = 0; i < r.length; i += 2)
+                {
+                    if (r[i] < Character.MIN_SURROGATE)
+                    {
+                        entry = utf8(b, r[i], Math.min(r[i + 1], Character.MIN_SURROGATE - 1), out[x], entry);
+                    }
+                    if (r[i + 1] > Character.MAX_SURROGATE)
+                    {
+                        entry = utf8(b, Math.max(r[i], Character.MAX_SURROGATE + 1), r[i + 1], out[x], entry);
+                    }
+                }
+                int[] high = clip(r, Character.MIN_HIGH_SURROGATE, Character.MAX_HIGH_SURROGATE);
+                if (high.length > 0)
+                {
+                    int n = closure(out[x], set, 0, mark, ++gen, stack);
+                    for (int j = 0; j < n; j++)
+                    {
+                        if (op[set[j]] == CHAR)
+                        {
+                            entry = pairs(b, high, clip(cls[set[j]].ranges(), Character.MIN_LOW_SURROGATE,
+                                    Character.MAX_LOW_SURROGATE), out[set[j]], entry);
+                        }
+                    }
+                }
+                b.out[x] = entry;
+            }
+        }
+        b.start = start;
+        return b;
+    }
+
+    /** the parts of the {lo, hi} pairs r within from..to */
+    private static int[] clip(int[] r, int from, int to)
+    {
+        int[] c = new int[r.length];
+        int n = 0;
+        for (int i = 0; i < r.length; i += 2)
+        {
+            if (r[i] <= to && r[i + 1] >= from)
+            {
+                c[n++] = Math.max(r[i], from);
+                c[n++] = Math.min(r[i + 1], to);
+            }
+        }
+        return Arrays.copyOf(c, n);
+    }
+
+    /** adds the 4-byte sequences of the code points with a high surrogate in high and a low one in low */
+    private static int pairs(Nfa b, int[] high, int[] low, int cont, int alt)
+    {
+        for (int i = 0; i < high.length; i += 2)
+        {
+            for (int j = 0; j < low.length; j += 2)
+            {
+                if (low[j] == Character.MIN_LOW_SURROGATE && low[j + 1] == Character.MAX_LOW_SURROGATE)
+                {
+                    alt = utf8(b, codePoint(high[i], low[j]), codePoint(high[i + 1], low[j + 1]), cont, alt);
+                    continue;
+                }
+                for (int h = high[i]; h <= high[i + 1]; h++)
+                {
+                    alt = utf8(b, codePoint(h, low[j]), codePoint(h, low[j + 1]), cont, alt);
+                }
+            }
+        }
+        return alt;
+    }
+
+    private static int codePoint(int high, int low)
+    {
+        return Character.toCodePoint((char) high, (char) low);
+    }
+
+    /**
+     * Adds the byte sequences of characters lo..hi to b, each continuing at
+     * cont, as alternatives to alt.  The range is split until every piece
+     * encodes to the same number of bytes and each byte position is a plain
+     * range (the splitting used by RE2 and Rust's utf8-ranges).
+     */
+    private static int utf8(Nfa b, int lo, int hi, int cont, int alt)
+    {
+        for (int end : new int[] { 0x7F, 0x7FF, 0xFFFF })
+        {
+            if (lo <= end && end < hi)
+            {
+                return utf8(b, end + 1, hi, cont, utf8(b, lo, end, cont, alt));
+            }
+        }
+        int n = lo <= 0x7F ? 1 : lo <= 0x7FF ? 2 : lo <= 0xFFFF ? 3 : 4;
+        for (int i = 1; i < n; i++)
+        {
+            int m = (1 << (6 * i)) - 1;
+            if ((lo & ~m) != (hi & ~m))
+            {
+                if ((lo & m) != 0)
+                {
+                    return utf8(b, (lo | m) + 1, hi, cont, utf8(b, lo, lo | m, cont, alt));
+                }
+                if ((hi & m) != m)
+                {
+                    return utf8(b, hi & ~m, hi, cont, utf8(b, lo, (hi & ~m) - 1, cont, alt));
+                }
+            }
+        }
+        int[] a = encode(lo, n), z = encode(hi, n);
+        int s = cont;
+        for (int i = n - 1; i >= 0; i--)
+        {
+            s = b.add(BYTE, null, s, a[i] << 8 | z[i]);
+        }
+        return alt == -1 ? s : b.add(SPLIT, null, s, alt);
+    }
+
+    private static int[] encode(int c, int n)
+    {
+        switch (n)
+        {
+            case 1:
+                return new int[] { c };
+            case 2:
+                return new int[] { 0xC0 | c >> 6, 0x80 | c & 0x3F };
+            case 3:
+                return new int[] { 0xE0 | c >> 12, 0x80 | c >> 6 & 0x3F, 0x80 | c & 0x3F };
+            default:
+                return new int[] { 0xF0 | c >> 18, 0x80 | c >> 12 & 0x3F, 0x80 | c >> 6 & 0x3F, 0x80 | c & 0x3F };
+        }
+    }
+
+    /** compiles n and its successors, continuing at cont */
+    private int chain(SRNode n, int cont)
+    {
+        if (n == null)
+        {
+            return cont;
+        }
+        return repeat(n, chain(n.next, cont));
+    }
+
+    private int repeat(SRNode n, int cont)
+    {
+        if (counting && !n.GROUP && (n.max == Integer.MAX_VALUE ? n.min : n.max) > COUNT_LIMIT)
+        {
+            return count(n, cont);
+        }
+        int s = cont;
+        if (n.max == Integer.MAX_VALUE)
+        {
+            s = add(SPLIT, null, -1, cont);
+            out[s] = one(n, s);
+        }
+        else
+        {
+            for (int i = n.min; i < n.max; i++)
+            {
+                s = add(SPLIT, null, one(n, s), cont);
+            }
+        }
+        for (int i = 0; i < n.min; i++)
+        {
+            s = one(n, s);
+        }
+        return s;
+    }
+
+    /** x{n,m} becomes COUNT(max(n,1), m), optional when n is 0; x{n,} becomes COUNT(n, n) x* */
+    private int count(SRNode n, int cont)
+    {
+        if (n.max == Integer.MAX_VALUE)
+        {
+            int star = add(SPLIT, null, -1, cont);
+            out[star] = add(CHAR, n.x, star, -1);
+            cont = star;
+        }
+        int s = add(COUNT, n.x, cont, Math.max(n.min, 1));
+        upper[s] = n.max == Integer.MAX_VALUE ? n.min : n.max;
+        counters++;
+        return n.min == 0 ? add(SPLIT, null, s, cont) : s;
+    }
+
+    private int one(SRNode n, int cont)
+    {
+        if (!n.GROUP)
+        {
+            return add(CHAR, n.x, cont, -1);
+        }
+        if (n.any == null)
+        {
+            return cont;
+        }
+        int s = chain(n.any.get(n.any.size() - 1), cont);
+        for (int i = n.any.size() - 2; i >= 0; i--)
+        {
+            s = add(SPLIT, null, chain(n.any.get(i), cont), s);
+        }
+        return s;
+    }
+
+    /**
+     * Adds the epsilon closure of s to set[0..n) and returns the new n.
+     * States already stamped with gen in mark are skipped.
+     */
+    int closure(int s, int[] set, int n, int[] mark, int gen, int[] stack)
+    {
+        int sp = 0;
+        stack[sp++] = s;
+        while (sp > 0)
+        {
+            int x = stack[--sp];
+            if (x < 0 || mark[x] == gen)
+            {
+                continue;
+            }
+            mark[x] = gen;
+            if (op[x] == SPLIT)
+            {
+                stack[sp++] = out1[x];
+                stack[sp++] = out[x];
+            }
+            else
+            {
+                set[n++] = x;
+            }
+        }
+        return n;
+    }
+
+    /** a sorted set of states, usable as a hash key */
+    static final class StateSet {
+
+        final int[] states;
+        final int hash;
+
+        StateSet(int[] states)
+        {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof StateSet && Arrays.equals(states, ((StateSet) obj).states);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a pattern over a byte[] or a file in chunks, on a ForkJoinPool.
+ *
+ * For matches, each chunk is run through the byte DFA from every state at
+ * once, which gives the state each start state ends in; chained from the
+ * start state, these mappings give the state at the end of the input.  The
+ * runs from different states mostly merge within a few bytes, and runs
+ * that have merged are stepped as one, so a chunk costs about as much as a
+ * single run.
+ *
+ * For findAll, each chunk is searched as if a search started there, and
+ * the matches of a chunk are kept once the search that came from the
+ * chunks before reaches one of them: from the end of a match on, the two
+ * searches go the same way.  Until then, after a match that ran into the
+ * chunk, the search is resumed from the end of that match.  Either search
+ * starts no match past the end of its chunk, so it reads on only as far as
+ * the matches that started in the chunk go.
+ */
+final class ParallelScan {
+
+    /** the smallest chunk that is worth a task of its own */
+    static final int MIN_CHUNK = 1 << 16;
+    /** the largest chunk, which must fit in a ByteBuffer */
+    static final int MAX_CHUNK = 1 << 30;
+
+    private final ForkJoinPool pool;
+    private final int chunk;
+
+    ParallelScan(ForkJoinPool pool, int chunk)
+    {
+        this.pool = pool;
+        this.chunk = chunk;
+    }
+
+    /** a scan on the common pool, in chunks that keep each worker busy with a few */
+    static ParallelScan of(long length)
+    {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long chunk = length / (4L * pool.getParallelism()) + 1;
+        return new ParallelScan(pool, (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, chunk)));
+    }
+
+    /** the bytes to scan: a slice of an array, or a file */
+    abstract static class Input {
+
+        final long length;
+
+        Input(long length)
+        {
+            this.length = length;
+        }
+
+        /** the bytes from..to-1 */
+        abstract ByteBuffer slice(long from, long to) throws IOException;
+
+        /** a stream over the bytes from..to-1 */
+        abstract FeatureInputStream range(long from, long to) throws IOException;
+
+        /** a stream over the bytes from p to the end */
+        FeatureInputStream from(long p) throws IOException
+        {
+            return range(p, length);
+        }
+    }
+
+    static Input of(byte[] b, int off, int len)
+    {
+        return new Input(len)
+        {
+            @Override
+            ByteBuffer slice(long from, long to)
+            {
+                return ByteBuffer.wrap(b, off + (int) from, (int) (to - from));
+            }
+
+            @Override
+            FeatureInputStream range(long from, long to)
+            {
+                return new FeatureInputStream(new ByteArrayInputStream(b, off + (int) from, (int) (to - from)));
+            }
+        };
+    }
+
+    static Input of(Path file) throws IOException
+    {
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            size = channel.size();
+        }
+        return new Input(size)
+        {
+            @Override
+            ByteBuffer slice(long from, long to) throws IOException
+            {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+                {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                }
+            }
+
+            @Override
+            FeatureInputStream range(long from, long to) throws IOException
+            {
+                return new FeatureInputStream(new ChannelRange(FileChannel.open(file, StandardOpenOption.READ), from, to));
+            }
+        };
+    }
+
+    /** the bytes from..to-1 of a channel, read at their positions */
+    private static final class ChannelRange extends InputStream {
+
+        private final FileChannel channel;
+        private long pos;
+        private final long end;
+
+        ChannelRange(FileChannel channel, long from, long to)
+        {
+            this.channel = channel;
+            this.pos = from;
+            this.end = to;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (pos >= end)
+            {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n > 0)
+            {
+                pos += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /** work on chunk i, which starts at i * chunk */
+    private interface Work {
+
+        void run(int i) throws IOException;
+    }
+
+    /** runs work on each chunk of in, on the pool */
+    private void each(Input in, Work work) throws IOException
+    {
+        int n = (int) ((in.length + chunk - 1) / chunk);
+        try
+        {
+            pool.invoke(new Chunks(work, 0, n));
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Chunks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Work work;
+        private final int from, to;
+
+        Chunks(Work work, int from, int to)
+        {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > 1)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Chunks(work, from, mid), new Chunks(work, mid, to));
+                return;
+            }
+            if (to > from)
+            {
+                try
+                {
+                    work.run(from);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /** whether all of in matches dfa, a byte DFA */
+    boolean matches(Dfa dfa, Input in) throws IOException
+    {
+        int[][] maps = new int[(int) ((in.length + chunk - 1) / chunk)][];
+        each(in, i -> maps[i] = map(dfa, in.slice((long) i * chunk, Math.min(in.length, (long) (i + 1) * chunk))));
+        int s = dfa.start;
+        for (int i = 0; i < maps.length && s != Dfa.DEAD; i++)
+        {
+            s = maps[i][s];
+        }
+        return dfa.accept[s] >= 0;
+    }
+
+    /** the state that dfa ends in over b from each state */
+    static int[] map(Dfa dfa, ByteBuffer b)
+    {
+        int n = dfa.size;
+        // runs[of[s]] is where the run from s is; the runs are distinct states
+        int[] runs = new int[n], of = new int[n];
+        for (int s = 0; s < n; s++)
+        {
+            runs[s] = s;
+            of[s] = s;
+        }
+        int live = n;
+        int[] slot = new int[n], stamp = new int[n], merged = new int[n];
+        int gen = 0;
+        for (int p = b.position(), end = b.limit(); p < end; p++)
+        {
+            int k = dfa.alphabet.low[b.get(p) & 0xFF];
+            gen++;
+            int m = 0;
+            for (int r = 0; r < live; r++)
+            {
+                int t = dfa.table[runs[r] * dfa.classes + k];
+                if (stamp[t] != gen)
+                {
+                    stamp[t] = gen;
+                    slot[t] = m;
+                    runs[m++] = t;
+                }
+                merged[r] = slot[t];
+            }
+            if (m < live)
+            {
+                for (int s = 0; s < n; s++)
+                {
+                    of[s] = merged[of[s]];
+                }
+                live = m;
+            }
+        }
+        int[] map = new int[n];
+        for (int s = 0; s < n; s++)
+        {
+            map[s] = runs[of[s]];
+        }
+        return map;
+    }
+
+    /** the leftmost-longest, non-overlapping matches of the byte program in in */
+    List<Match> findAll(Nfa bytes, Prefilter prefilter, Input in) throws IOException
+    {
+        List<List<Match>> found = new ArrayList<>();
+        int n = (int) ((in.length + chunk - 1) / chunk);
+        for (int i = 0; i < n; i++)
+        {
+            found.add(null);
+        }
+        each(in, i -> found.set(i, search(bytes, prefilter, in, (long) i * chunk, (long) (i + 1) * chunk)));
+        List<Match> all = new ArrayList<>();
+        long pos = 0;
+        for (int i = 0; i < n; i++)
+        {
+            long start = (long) i * chunk, end = start + chunk;
+            List<Match> ms = found.get(i);
+            if (pos <= start)
+            {
+                all.addAll(ms);
+            }
+            else if (pos < end)
+            {
+                resync(bytes, prefilter, in, pos, end, ms, all);
+            }
+            pos = all.isEmpty() ? 0 : all.get(all.size() - 1).end;
+        }
+        return all;
+    }
+
+    /** the matches that start in from..to-1 of a search that starts at from */
+    private static List<Match> search(Nfa bytes, Prefilter prefilter, Input in, long from, long to) throws IOException
+    {
+        List<Match> ms = new ArrayList<>();
+        try (FeatureInputStream s = in.from(from))
+        {
+            Finder f = new Finder(bytes, prefilter, s).limit(to - from);
+            while (f.hasNext())
+            {
+                Match m = f.next();
+                ms.add(new Match(from + m.start, from + m.end));
+            }
+        }
+        return ms;
+    }
+
+    /**
+     * searches from pos, inside the chunk that ends at to, until a match is
+     * one of the chunk's own, ms, and adds the matches to all
+     */
+    private static void resync(Nfa bytes, Prefilter prefilter, Input in, long pos, long to, List<Match> ms, List<Match> all)
+            throws IOException
+    {
+        try (FeatureInputStream s = in.from(pos))
+        {
+            Finder f = new Finder(bytes, prefilter, s).limit(to - pos);
+            int j = 0;
+            while (f.hasNext())
+            {
+                Match m = f.next();
+                m = new Match(pos + m.start, pos + m.end);
+                while (j < ms.size() && ms.get(j).start < m.start)
+                {
+                    j++;
+                }
+                if (j < ms.size() && ms.get(j).equals(m))
+                {
+                    all.addAll(ms.subList(j, ms.size()));
+                    return;
+                }
+                all.add(m);
+            }
+        }
+    }
+}
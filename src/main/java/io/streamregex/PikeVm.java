@@ -0,0 +1,249 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs an Nfa as a Thompson/Pike VM: every live state is a thread, kept in
+ * preallocated sparse sets, and all threads advance in lock step over the
+ * input.  Nothing is allocated per character and the work per character is
+ * bounded by the size of the program, so matching is linear in the input.
+ *
+ * A COUNT state holds a counting set instead of a single thread: the times
+ * at which threads entered it, oldest first.  A thread that entered at time
+ * e has consumed time - e characters of the class, so all counters advance
+ * together as time passes, and the oldest one decides whether the state may
+ * be left.  The set has at most upper + 1 entries, whatever the input.
+ */
+final class PikeVm implements Automaton {
+
+    final Nfa nfa;
+    private SparseSet clist, nlist;
+    private final int[] stack;
+    /** the lowest rule id accepted by nlist, or -1 */
+    private int rule;
+    private int lastRule = -1;
+    /** the counting sets of the COUNT states, as ring buffers of entry times */
+    private final int[][] entries;
+    private final int[] first, count;
+    private int time;
+
+    PikeVm(Nfa nfa)
+    {
+        this.nfa = nfa;
+        this.clist = new SparseSet(nfa.size);
+        this.nlist = new SparseSet(nfa.size);
+        this.stack = new int[nfa.size * 2 + 1];
+        this.entries = new int[nfa.size][];
+        this.first = new int[nfa.size];
+        this.count = new int[nfa.size];
+        for (int x = 0; x < nfa.size; x++)
+        {
+            if (nfa.op[x] == Nfa.COUNT)
+            {
+                entries[x] = new int[nfa.upper[x] + 1];
+            }
+        }
+    }
+
+    /** a thread enters COUNT state x now */
+    private void enter(int x)
+    {
+        int[] e = entries[x];
+        int n = count[x];
+        if (n > 0 && e[(first[x] + n - 1) % e.length] == time)
+        {
+            return;
+        }
+        e[(first[x] + n) % e.length] = time;
+        count[x]++;
+    }
+
+    /** the number of characters consumed by the oldest thread in COUNT state x */
+    private int oldest(int x)
+    {
+        return time - entries[x][first[x]];
+    }
+
+    private void add(int pc)
+    {
+        int sp = 0;
+        stack[sp++] = pc;
+        while (sp > 0)
+        {
+            int x = stack[--sp];
+            if (x < 0)
+            {
+                continue;
+            }
+            if (nfa.op[x] == Nfa.COUNT)
+            {
+                enter(x);
+            }
+            if (nlist.contains(x))
+            {
+                continue;
+            }
+            nlist.add(x);
+            switch (nfa.op[x])
+            {
+                case Nfa.SPLIT:
+                    stack[sp++] = nfa.out1[x];
+                    stack[sp++] = nfa.out[x];
+                    break;
+                case Nfa.MATCH:
+                    if (rule == -1 || nfa.out[x] < rule)
+                    {
+                        rule = nfa.out[x];
+                    }
+                    break;
+                default:
+            }
+        }
+    }
+
+    @Override
+    public Automaton fork()
+    {
+        return new PikeVm(nfa);
+    }
+
+    /** resets the threads to the start of the program; returns the accepted rule */
+    @Override
+    public int begin()
+    {
+        nlist.clear();
+        rule = -1;
+        time = 0;
+        if (nfa.counters > 0)
+        {
+            Arrays.fill(count, 0);
+        }
+        add(nfa.start);
+        swap();
+        return rule;
+    }
+
+    /** advances all threads over c; returns the accepted rule, or -2 if no thread is left */
+    @Override
+    public int step(int c)
+    {
+        nlist.clear();
+        rule = -1;
+        time++;
+        for (int i = 0; nfa.counters > 0 && i < clist.size; i++)
+        {
+            // counters live on while c is in their class, until they pass upper
+            int x = clist.dense[i];
+            if (nfa.op[x] == Nfa.COUNT)
+            {
+                if (!nfa.cls[x].in(c))
+                {
+                    count[x] = 0;
+                }
+                while (count[x] > 0 && oldest(x) > nfa.upper[x])
+                {
+                    first[x] = (first[x] + 1) % entries[x].length;
+                    count[x]--;
+                }
+            }
+        }
+        for (int i = 0; i < clist.size; i++)
+        {
+            int x = clist.dense[i];
+            if (nfa.op[x] == Nfa.CHAR && nfa.cls[x].in(c))
+            {
+                add(nfa.out[x]);
+            }
+            else if (nfa.op[x] == Nfa.COUNT && count[x] > 0)
+            {
+                if (!nlist.contains(x))
+                {
+                    nlist.add(x);
+                }
+                if (oldest(x) >= nfa.out1[x])
+                {
+                    add(nfa.out[x]);
+                }
+            }
+        }
+        swap();
+        return clist.size == 0 ? -2 : rule;
+    }
+
+    private void swap()
+    {
+        SparseSet t = clist;
+        clist = nlist;
+        nlist = t;
+    }
+
+    @Override
+    public int size()
+    {
+        return nfa.size;
+    }
+
+    @Override
+    public boolean exhausted()
+    {
+        return false;
+    }
+
+    @Override
+    public int lastRule()
+    {
+        return lastRule;
+    }
+
+    @Override
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        int r = begin();
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                return r >= 0;
+            }
+            if ((r = step(c)) == -2)
+            {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        int accepted = 0, found = -1;
+        long end = in.position();
+        begin();
+        for (;;)
+        {
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                break;
+            }
+            int r = step(c);
+            if (r == -2)
+            {
+                break;
+            }
+            b.append((char) c);
+            if (r >= 0)
+            {
+                accepted = b.length();
+                found = r;
+                end = in.position();
+            }
+        }
+        in.unreadTo(end);
+        lastRule = accepted > 0 ? found : -1;
+        return accepted > 0 ? b.substring(0, accepted) : null;
+    }
+}
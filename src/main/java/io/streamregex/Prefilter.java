@@ -0,0 +1,414 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import util.RT;
+
+/**
+ * Finds the places where a match can start, without running the automaton.
+ *
+ * The SRNode tree is searched for literals: a prefix that every match starts
+ * with and the longest literal that every match contains.  Together with the
+ * set of bytes a match can start with they drive skip loops over streams
+ * and byte arrays: a first-byte scan (memchr style), a rare byte pair scan
+ * for the prefix, and Boyer-Moore-Horspool for the required literal.
+ */
+final class Prefilter {
+
+    /** UTF-8 bytes of the literal prefix, possibly empty */
+    final byte[] prefix;
+    /** UTF-8 bytes of the longest literal every match contains, possibly empty */
+    final byte[] required;
+    /** first[b] tells if a match can start with byte b */
+    final boolean[] first = new boolean[256];
+    /** false if every byte can start a match, so that skipping is pointless */
+    final boolean selective;
+    private final int rare1, rare2;
+    private final int[] shift = new int[256];
+
+    /**
+     * @param bytes the byte Nfa of root, which gives the first bytes
+     * @param chars its char Nfa, which adds the lead bytes of the surrogates
+     *        a match can start with, for streams searched as characters
+     */
+    Prefilter(SRNode root, Nfa bytes, Nfa chars)
+    {
+        Literal lit = new Literal();
+        lit.node(root);
+        lit.end();
+        this.prefix = lit.prefix.getBytes(RT.UTF8);
+        String longest = "";
+        for (String run : lit.runs)
+        {
+            if (run.length() > longest.length())
+            {
+                longest = run;
+            }
+        }
+        this.required = longest.getBytes(RT.UTF8);
+        int[] set = new int[bytes.size], mark = new int[bytes.size], stack = new int[bytes.size * 2 + 1];
+        int n = bytes.closure(bytes.start, set, 0, mark, 1, stack);
+        boolean all = false;
+        for (int i = 0; i < n; i++)
+        {
+            if (bytes.op[set[i]] == Nfa.MATCH)
+            {
+                all = true;  // the empty match starts anywhere
+            }
+            for (int b = 0; b < 256; b++)
+            {
+                first[b] |= bytes.in(set[i], b);
+            }
+        }
+        n = chars.closure(chars.start, set, 0, new int[chars.size], 1, new int[chars.size * 2 + 1]);
+        for (int i = 0; i < n; i++)
+        {
+            if (chars.op[set[i]] == Nfa.CHAR)
+            {
+                int[] r = chars.cls[set[i]].ranges();
+                for (int j = 0; j < r.length; j += 2)
+                {
+                    for (int c = Math.max(r[j], Character.MIN_SURROGATE); c <= Math.min(r[j + 1], Character.MAX_SURROGATE); c++)
+                    {
+                        first[lead(c)] = true;
+                    }
+                }
+            }
+        }
+        int count = 0;
+        for (boolean f : first)
+        {
+            count += f ? 1 : 0;
+        }
+        this.selective = !all && count < 256;
+        int r1 = 0, r2 = prefix.length > 1 ? 1 : 0;
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (frequency(prefix[i]) < frequency(prefix[r1]))
+            {
+                r1 = i;
+            }
+        }
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (i != r1 && (r2 == r1 || frequency(prefix[i]) < frequency(prefix[r2])))
+            {
+                r2 = i;
+            }
+        }
+        this.rare1 = r1;
+        this.rare2 = r2;
+        for (int b = 0; b < 256; b++)
+        {
+            shift[b] = required.length;
+        }
+        for (int i = 0; i < required.length - 1; i++)
+        {
+            shift[required[i] & 0xFF] = required.length - 1 - i;
+        }
+    }
+
+    /**
+     * Skips bytes that can not start a match; the next read returns the
+     * first byte that can, or -1.  A stream that is not read bytewise, see
+     * Finder.bytewise, is skipped a character at a time, by the first UTF-8
+     * byte of each.
+     *
+     * @return the number of bytes skipped
+     */
+    long skip(FeatureInputStream in) throws IOException
+    {
+        return Finder.bytewise(in) ? skipBytes(in, Long.MAX_VALUE) : skipChars(in, Long.MAX_VALUE);
+    }
+
+    /** skips no more than max bytes that can not start a match */
+    long skipBytes(FeatureInputStream in, long max) throws IOException
+    {
+        if (!selective)
+        {
+            return 0;
+        }
+        long n = 0;
+        while (n < max)
+        {
+            int b = in.readByte();
+            if (b == -1 || first[b])
+            {
+                in.push(b);
+                return n;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /** skips the characters of no more than max bytes that can not start a match, and the low halves of pairs */
+    long skipChars(FeatureInputStream in, long max) throws IOException
+    {
+        if (!selective)
+        {
+            return 0;
+        }
+        long start = in.position();
+        int prev = -1;
+        for (long p = start; p - start < max; p = in.position())
+        {
+            int c = in.readUtf8();
+            if (c == -1 || first[lead(c)] && !pair(prev, c))
+            {
+                in.push(c);
+                return p - start;
+            }
+            prev = c;
+        }
+        return in.position() - start;
+    }
+
+    /** the first index in s from i on where a match can start, or the length of s */
+    int skip(CharSequence s, int i)
+    {
+        if (selective)
+        {
+            while (i < s.length() && (!first[lead(s.charAt(i))] || i > 0 && pair(s.charAt(i - 1), s.charAt(i))))
+            {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    /** whether high and low are the two halves of a surrogate pair */
+    private static boolean pair(int high, int low)
+    {
+        return Character.isHighSurrogate((char) high) && Character.isLowSurrogate((char) low);
+    }
+
+    /** the first byte of the UTF-8 encoding of the character that starts with the UTF-16 unit c */
+    private static int lead(int c)
+    {
+        if (c < 0x80)
+        {
+            return c;
+        }
+        if (c < 0x800)
+        {
+            return 0xC0 | c >> 6;
+        }
+        if (Character.isHighSurrogate((char) c))
+        {
+            return 0xF0 | (c - 0xD800 + 0x40) >> 8;
+        }
+        return 0xE0 | c >> 12;
+    }
+
+    /** the first position in buf[from..to) where a match can start, or -1 */
+    int find(byte[] buf, int from, int to)
+    {
+        if (prefix.length > 1)
+        {
+            return findPrefix(buf, from, to);
+        }
+        if (!selective)
+        {
+            return from < to ? from : -1;
+        }
+        for (int i = from; i < to; i++)
+        {
+            if (first[buf[i] & 0xFF])
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** scans for the two rarest bytes of the prefix at their offsets, then verifies the rest */
+    private int findPrefix(byte[] buf, int from, int to)
+    {
+        byte b1 = prefix[rare1], b2 = prefix[rare2];
+        for (int i = from + rare1, end = to - prefix.length + rare1; i <= end; i++)
+        {
+            if (buf[i] != b1 || buf[i - rare1 + rare2] != b2)
+            {
+                continue;
+            }
+            int start = i - rare1;
+            int k = 0;
+            while (k < prefix.length && buf[start + k] == prefix[k])
+            {
+                k++;
+            }
+            if (k == prefix.length)
+            {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /** tells if buf[from..to) contains the required literal (Boyer-Moore-Horspool) */
+    boolean mayMatch(byte[] buf, int from, int to)
+    {
+        int m = required.length;
+        if (m == 0)
+        {
+            return true;
+        }
+        for (int i = from; i + m <= to; i += shift[buf[i + m - 1] & 0xFF])
+        {
+            int k = m - 1;
+            while (k >= 0 && buf[i + k] == required[k])
+            {
+                k--;
+            }
+            if (k < 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** a rough rank of how common a byte is in text; lower is rarer */
+    static int frequency(byte b)
+    {
+        int c = b & 0xFF;
+        if (c == ' ' || "etaoinsr".indexOf(c) >= 0)
+        {
+            return 250;
+        }
+        if (c >= 'a' && c <= 'z')
+        {
+            return 200;
+        }
+        if (c >= '0' && c <= '9')
+        {
+            return 120;
+        }
+        if (c >= 'A' && c <= 'Z')
+        {
+            return 100;
+        }
+        if (c == '\n' || c == '\r' || c == '\t')
+        {
+            return 90;
+        }
+        return c < 128 ? 60 : 40;
+    }
+
+    /**
+     * Collects the literal runs every match must contain, walking the SRNode
+     * tree in order; a run is cut wherever a node may match more than one
+     * string.
+     */
+    static final class Literal {
+
+        /** the run that every match starts with, once known */
+        String prefix;
+        final List<String> runs = new ArrayList<>();
+        /** true while everything walked so far is exactly the current run */
+        boolean exact = true;
+        private StringBuilder run = new StringBuilder();
+
+        void chain(SRNode n)
+        {
+            for (; n != null; n = n.next)
+            {
+                node(n);
+            }
+        }
+
+        void node(SRNode n)
+        {
+            if (!n.GROUP)
+            {
+                int[] r = n.x.ranges();
+                if (r.length == 2 && r[0] == r[1])
+                {
+                    for (int i = 0; i < n.min; i++)
+                    {
+                        run.appendCodePoint(r[0]);
+                    }
+                    if (n.max != n.min)
+                    {
+                        cut();
+                    }
+                }
+                else
+                {
+                    cut();
+                }
+                return;
+            }
+            if (n.any == null)
+            {
+                return;
+            }
+            if (n.min == 0)
+            {
+                cut();
+                return;
+            }
+            List<Literal> alts = new ArrayList<>();
+            for (SRNode alt : n.any)
+            {
+                Literal lit = new Literal();
+                lit.chain(alt);
+                lit.end();
+                alts.add(lit);
+            }
+            if (alts.size() == 1 && alts.get(0).exact && n.min == n.max)
+            {
+                for (int i = 0; i < n.min; i++)
+                {
+                    run.append(alts.get(0).prefix);
+                }
+                return;
+            }
+            String common = null;
+            for (Literal lit : alts)
+            {
+                common = common == null ? lit.prefix : commonPrefix(common, lit.prefix);
+            }
+            run.append(common);
+            cut();
+            if (alts.size() == 1)
+            {
+                runs.addAll(alts.get(0).runs);
+            }
+        }
+
+        /** ends the current run where the pattern stops being literal */
+        void cut()
+        {
+            end();
+            exact = false;
+            run = new StringBuilder();
+        }
+
+        /** ends the current run at the end of the pattern */
+        void end()
+        {
+            if (run.length() > 0)
+            {
+                runs.add(run.toString());
+            }
+            if (exact)
+            {
+                prefix = run.toString();
+            }
+        }
+
+        private static String commonPrefix(String a, String b)
+        {
+            int i = 0;
+            while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i))
+            {
+                i++;
+            }
+            return a.substring(0, i);
+        }
+    }
+}
@@ -1,43 +1,193 @@
-
 package io.streamregex;
 
 import io.FeatureInputStream;
 import struct.Duple;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-/** A StreamRegex that returns mappings, mapping an item with 
+/** A StreamRegex that returns mappings, mapping an item with
  * the string that was just accepted.
- * 
+ *
+ * With an automaton engine all patterns are compiled into one automaton
+ * whose accepting states carry the rule id of their pattern, so readNext
+ * finds the longest match and its rule in one pass.  When two patterns
+ * accept the same longest item, the one mapped first wins.
+ *
+ * Patterns that match one plain string, like keywords and operators, are
+ * left out of that automaton and go into a LiteralTrie that is stepped
+ * along with it, so adding keywords does not grow the automaton.
+ *
  * @author pvto https://github.com/pvto
  * @param <T> the type of objects referenced
  */
 public class RegexMapper<T> extends StreamRegex {
-    
-    public final List<T> objectRefs;
 
-    private RegexMapper(String regex, List<T> refs)
-    { 
-        super(regex);
+    /** referenced objects by fragment offset in the combined pattern, for the LANES engine */
+    public final List<T> objectRefs;
+    /** referenced objects by rule id */
+    private final List<T> ruleRefs;
+    /** the literal rules, or null when the automaton has all rules */
+    private final LiteralTrie trie;
+    /** the fragment offset of each rule in the combined pattern, for the LANES engine */
+    private final List<Integer> ruleOffsets;
+    /** the patterns of all rules, literal or not */
+    private final List<SRNode> allRules;
+    /** the session of the reading methods, made on first use */
+    private MapperSession<T> own;
+    private RegexMapper(String regex, List<T> refs, List<T> ruleRefs, Engine engine, List<SRNode> rules, LiteralTrie trie,
+            List<SRNode> allRules, List<Integer> ruleOffsets)
+    {
+        super(regex, engine, LazyDfa.DEFAULT_BUDGET, rules);
         objectRefs = refs;
+        this.ruleRefs = ruleRefs;
+        this.trie = trie;
+        this.allRules = allRules;
+        this.ruleOffsets = ruleOffsets;
+    }
+
+    @Override
+    int laneRule(Session session)
+    {
+        return ruleOffsets.indexOf(session.getLastMatchingFragmentOffset());
+    }
+
+    @Override
+    List<SRNode> rules()
+    {
+        return allRules;
+    }
+
+    /** a session that reads tokens and maps them, with the match state of its own */
+    @Override
+    public MapperSession<T> session()
+    {
+        return newSession(automaton != null ? automaton.fork() : null);
+    }
+
+    @Override
+    MapperSession<T> newSession(Automaton automaton)
+    {
+        return new MapperSession<>(this, automaton, trie);
+    }
+
+    /** the session of the reading methods here and of StreamRegex */
+    @Override
+    MapperSession<T> own()
+    {
+        if (own == null)
+        {
+            own = newSession(automaton);
+        }
+        return own;
     }
-    
+
+    /** see MapperSession.readNext(FeatureInputStream) */
     public Duple<String, T> readNext(FeatureInputStream in) throws IOException
     {
-        String s = super.readItem(in);
-        return new Duple(s, s == null ? null : getReferendFromLastRead());
+        return own().readNext(in);
+    }
+
+    /** see MapperSession.readNext(FeatureInputStream, TokenSpan) */
+    public boolean readNext(FeatureInputStream in, TokenSpan token) throws IOException
+    {
+        return own().readNext(in, token);
+    }
+
+    /** reads the next token of s at from like readNext(in), with s read in place */
+    public Duple<String, T> readNext(CharSequence s, int from)
+    {
+        return own().readNext(s, from);
+    }
+
+    public Duple<String, T> readNext(char[] a, int off, int len)
+    {
+        return own().readNext(a, off, len);
+    }
+
+    public Duple<String, T> readNext(byte[] b, int off, int len)
+    {
+        return own().readNext(b, off, len);
     }
-    
+
+    /** the tokens of a UTF-8 file, with splits at newlines; see tokens(Path, String) */
+    public Stream<Token<T>> tokens(Path file) throws IOException
+    {
+        return tokens(file, "\\n");
+    }
+
+    /**
+     * the tokens of a UTF-8 file, read as the Stream is consumed.  The
+     * Stream can be made parallel: it is split after matches of sync, which
+     * must not match inside a token, and each part is read in a session of
+     * its own.  A character that starts no token is a token of rule -1.
+     * Close the Stream to close the file when it is not read to the end.
+     */
+    public Stream<Token<T>> tokens(Path file, String sync) throws IOException
+    {
+        return tokens(ParallelScan.of(file), sync, ParallelScan.MIN_CHUNK);
+    }
+
+    /** the tokens of the UTF-8 bytes b[off..off+len-1], see tokens(Path, String) */
+    public Stream<Token<T>> tokens(byte[] b, int off, int len, String sync)
+    {
+        return tokens(ParallelScan.of(b, off, len), sync, ParallelScan.MIN_CHUNK);
+    }
+
+    Stream<Token<T>> tokens(ParallelScan.Input in, String sync, int minSplit)
+    {
+        StreamRegex s = new StreamRegex(sync);
+        s.prefilter();
+        Collection<FeatureInputStream> open = new ConcurrentLinkedQueue<>();
+        return StreamSupport.stream(new TokenSpliterator<>(session(), s, in, 0, in.length, minSplit, open), false)
+                .onClose(() ->
+                {
+                    for (FeatureInputStream f : open)
+                    {
+                        try
+                        {
+                            f.close();
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+    }
+
+    /** the object mapped to a rule id, as reported by a Feed */
+    public T getReferend(int rule)
+    {
+        return ruleRefs.get(rule);
+    }
+
     public T getReferendFromLastRead()
     {
-        return objectRefs.get(super.getLastMatchingFragmentOffset());
+        return own().getReferendFromLastRead();
+    }
+
+    /** the object mapped to the item that session read last */
+    T referend(Session session)
+    {
+        if (session.lastRule >= 0)
+        {
+            return ruleRefs.get(session.lastRule);
+        }
+        return objectRefs.get(session.getLastMatchingFragmentOffset());
     }
 
     public static class Builder<T> {
 
         private final List<Duple<String,T>> mappings = new ArrayList<>();
-        
+        private Engine engine = Engine.LANES;
+
         public Builder map(String s, T terminal)
         {
             mappings.add(new Duple(s, terminal));
@@ -51,16 +201,30 @@ public class RegexMapper<T> extends StreamRegex {
             }
             return this;
         }
+        /** selects the engine, LANES by default; an automaton engine reads all rules in one pass */
+        public Builder<T> engine(Engine engine)
+        {
+            this.engine = engine;
+            return this;
+        }
         public RegexMapper build()
         {
             StringBuilder str = new StringBuilder('(');
             List<T> refs = new ArrayList<>();
+            List<T> ruleRefs = new ArrayList<>();
+            List<SRNode> roots = new ArrayList<>();
+            List<SRNode> allRoots = new ArrayList<>();
+            List<Integer> ruleOffsets = new ArrayList<>();
+            List<String> literals = new ArrayList<>();
+            List<Integer> literalIds = new ArrayList<>();
+            boolean chars = engine != Engine.LANES && engine != Engine.BYTES;
             refs.add(null); // for the encompassing group
             refs.add(null); // for root
             int i = 0;
             for(Duple<String,T> d : this.mappings)
             {
                 str.append('(').append(d.t).append(')').append('|');
+                ruleOffsets.add(refs.size());
                 refs.add(d.u);
                 int j = i + 1;
                 while(j < i + 3 + d.t.length())
@@ -69,14 +233,39 @@ public class RegexMapper<T> extends StreamRegex {
                     refs.add(null);
                 }
                 i = j;
+                ruleRefs.add(d.u);
+                SRNode root = new StreamRegex(d.t).root;
+                allRoots.add(root);
+                if (engine != Engine.LANES)
+                {
+                    String literal = chars ? LiteralTrie.literal(root) : null;
+                    if (literal != null)
+                    {
+                        literals.add(literal);
+                        literalIds.add(roots.size());
+                        root = null;
+                    }
+                    roots.add(root);
+                }
             }
             str.setLength(str.length() - 1);
             str.append(")");
-            RegexMapper msregex = new RegexMapper(str.toString(), refs);
+            LiteralTrie trie = null;
+            if (!literals.isEmpty())
+            {
+                int[] ids = new int[literalIds.size()];
+                for (int k = 0; k < ids.length; k++)
+                {
+                    ids[k] = literalIds.get(k);
+                }
+                trie = new LiteralTrie(literals.toArray(new String[0]), ids);
+            }
+            RegexMapper msregex = new RegexMapper(str.toString(), refs, ruleRefs, engine, engine != Engine.LANES ? roots : null, trie,
+                    allRoots, ruleOffsets);
             return msregex;
         }
     }
 
-    
+
 
 }
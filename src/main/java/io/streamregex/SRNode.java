@@ -0,0 +1,103 @@
+package io.streamregex;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of the parsed pattern: a character class, or a group of
+ * alternatives, with its repetition bounds and the node after it.
+ */
+class SRNode {
+
+    CharClass x;
+    SRNode prev;
+    SRNode next;
+    boolean GROUP = false;
+    List<SRNode> any;
+    int min = 1, max = 1;
+    int offset = 0;
+    int nestingLevel = 0;
+
+    SRNode(CharClass x, SRNode prev, int offset)
+    {
+        this.x = x;
+        this.prev = prev;
+        this.offset = offset;
+        SRNode it = prev;
+        for (; it != null; nestingLevel++)
+        {
+            it = it.prev;
+        }
+    }
+
+    SRNode setNext(SRNode c)
+    {
+        if (next != null)
+        {
+            if (GROUP)
+            {
+                addAny(next);
+            }
+            else
+            {
+                throw new RuntimeException("Attempt to redefine node.next");
+            }
+        }
+        next = c;
+        return this;
+    }
+
+    void addAny(SRNode c)
+    {
+        if (any == null)
+        {
+            any = new ArrayList<>();
+        }
+        any.add(c);
+    }
+
+    public String toString()
+    {
+        return (x != null ? x : "") + (GROUP ? " G {" : " {") + min + "," + max + "}";
+    }
+
+    static void print(PrintStream out, SRNode n)
+    {
+        print_(out, n, 0);
+    }
+
+    static void print_(PrintStream out, SRNode n, int ind)
+    {
+        out.print(util.Arf.repeat(' ', ind));
+        out.println(n.toString());
+        if (n.any != null)
+        {
+            //out.println(new String(f.Arf.repeat(' ', ind)) + "ANY:");
+            for (SRNode c : n.any)
+            {
+                print_(out, c, ind + 2);
+            }
+            out.println(util.Arf.repeat('-', ind + 4));
+        }
+        if (n.next != null)
+        {
+            print_(out, n.next, ind + 2);
+        }
+    }
+
+    SRNode ancestorByRootDistance(int distFromRoot)
+    {
+        if (distFromRoot > nestingLevel)
+        {
+            return null;
+        }
+        int i = nestingLevel;
+        SRNode it = this;
+        while (i-- > distFromRoot)
+        {
+            it = it.prev;
+        }
+        return it;
+    }
+}
@@ -0,0 +1,465 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import util.RT;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * One use of a StreamRegex: the state of its engine while it reads, and
+ * what the last read matched.
+ *
+ * A StreamRegex is a compiled program that does not change once it is
+ * built, so it can be shared between threads, and each thread reads
+ * through a session() of its own.  A session is cheap: DFA tables and the
+ * generated classes of COMPILED are shared, and only the engines that
+ * build state as they run, LAZY_DFA and PIKE_VM, get new working sets.
+ * The reading methods of StreamRegex itself run in a session that the
+ * instance keeps for them, for use on one thread.
+ */
+public class Session {
+
+    final StreamRegex regex;
+    /** the engine of this session, or null for the LANES engine */
+    final Automaton automaton;
+    SRNode lastMatchingFragment;
+    int lastMatchingLength = 0;
+    /** the lanes of the LANES engine, made on first use */
+    private Lanes lanes;
+    /** the rule id accepted by the last read of an automaton engine, or -1 */
+    int lastRule = -1;
+
+    Session(StreamRegex regex, Automaton automaton)
+    {
+        this.regex = regex;
+        this.automaton = automaton;
+    }
+
+    /** the rule id of the last item read, or -1 */
+    public int lastRule()
+    {
+        return lastRule;
+    }
+
+    /** the offset in the pattern of the alternative that the lane engine matched last */
+    public int getLastMatchingFragmentOffset()
+    {
+        return lastMatchingFragment.ancestorByRootDistance(1).offset;
+    }
+
+    boolean useAutomaton()
+    {
+        return automaton != null && !automaton.exhausted();
+    }
+    
+    /**
+     * this will hungrily match as much as possible, and returns the longest
+     * match: the characters read past it are unread, however many, from the
+     * bytes that the stream keeps.  If nothing matches, this returns null and
+     * the stream is back where it was.
+     */
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        long start = in.hold();
+        try
+        {
+            return readHeld(in, start);
+        }
+        finally
+        {
+            in.release();
+        }
+    }
+
+    /** readItem, with the stream held from start on */
+    private String readHeld(FeatureInputStream in, long start) throws IOException
+    {
+        if (useAutomaton())
+        {
+            String s = automaton.readItem(in);
+            lastRule = automaton.lastRule();
+            return s;
+        }
+        lastRule = -1;
+        lastMatchingLength = 0;
+        long lastMatchingEnd = start;
+        StringBuilder b = new StringBuilder();
+        Lanes lanes = lanes();
+        lanes.begin();
+        for (int c; (c = in.readUtf8()) != -1 && lanes.step(c); )
+        {
+            b.append((char) c);
+            if (lanes.accepted >= 0)
+            {
+                lastMatchingLength = b.length();
+                lastMatchingEnd = in.position();
+                lastMatchingFragment = lanes.alternative(lanes.accepted);
+            }
+            if (!lanes.alive())
+            {
+                break;
+            }
+        }
+        in.unreadTo(lastMatchingEnd);
+        return lastMatchingLength > 0 ? b.substring(0, lastMatchingLength) : null;
+    }
+
+    private Lanes lanes()
+    {
+        if (lanes == null)
+        {
+            lanes = new Lanes(regex.root);
+        }
+        return lanes;
+    }
+
+    /**
+     * reads the longest token like readItem, but only sets token to where it
+     * is in the stream instead of building a String; bytes read past the
+     * token are unread
+     *
+     * @return false if no token could be read
+     */
+    public boolean readToken(FeatureInputStream in, TokenSpan token) throws IOException
+    {
+        long start = in.hold();
+        try
+        {
+            return readHeld(in, start, token);
+        }
+        finally
+        {
+            in.release();
+        }
+    }
+
+    /** readToken, with the stream held from start on */
+    private boolean readHeld(FeatureInputStream in, long start, TokenSpan token) throws IOException
+    {
+        if (!useAutomaton())
+        {
+            String s = readHeld(in, start);
+            return token.set(in, start, s == null ? start : in.position(), s == null ? -1 : regex.laneRule(this));
+        }
+        long end = start;
+        int found = -1;
+        boolean bytes = bytesAutomaton();
+        if (bytes)
+        {
+            Dfa.requireUtf8(in);
+        }
+        begin();
+        for (;;)
+        {
+            int c = bytes ? in.readByte() : in.readUtf8();
+            if (c == -1)
+            {
+                break;
+            }
+            int r = step(c);
+            if (r == -2)
+            {
+                break;
+            }
+            if (r >= 0)
+            {
+                end = in.position();
+                found = r;
+            }
+        }
+        in.unreadTo(end);
+        lastRule = end > start ? found : -1;
+        return token.set(in, start, end, lastRule);
+    }
+
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        if (useAutomaton())
+        {
+            return automaton.matches(in);
+        }
+        return matchesLanes(in);
+    }
+
+    /** resets the automaton for a new item; returns the rule accepted by the empty input, or -1 */
+    int begin()
+    {
+        return automaton.begin();
+    }
+
+    /** advances over c, see Automaton.step */
+    int step(int c)
+    {
+        return automaton.step(c);
+    }
+
+    /** whether the automaton steps over UTF-8 bytes instead of characters */
+    private boolean bytesAutomaton()
+    {
+        return automaton instanceof Dfa && ((Dfa) automaton).bytes;
+    }
+
+    /** whether all of s matches; s is read in place, without a stream */
+    public boolean matches(CharSequence s)
+    {
+        return matches(s, null, 0, s.length());
+    }
+
+    /** whether the chars a[off..off+len-1] match */
+    public boolean matches(char[] a, int off, int len)
+    {
+        return matches(null, a, off, off + len);
+    }
+
+    /** whether the UTF-8 bytes b[off..off+len-1] match */
+    public boolean matches(byte[] b, int off, int len)
+    {
+        if (!useAutomaton())
+        {
+            return matchesStream(new FeatureInputStream(new ByteArrayInputStream(b, off, len)));
+        }
+        return longest(b, off, off + len) == off + len;
+    }
+
+    private boolean matches(CharSequence s, char[] a, int from, int to)
+    {
+        if (!useAutomaton())
+        {
+            return matchesStream(stream(s, a, from, to));
+        }
+        return longest(s, a, from, to) == to;
+    }
+
+    private boolean matchesStream(FeatureInputStream in)
+    {
+        try
+        {
+            return matches(in);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * reads the longest item at s[from] like readItem(in), with s read in
+     * place; returns null if there is none
+     */
+    public String readItem(CharSequence s, int from)
+    {
+        int end = itemEnd(s, from);
+        return end < 0 ? null : s.subSequence(from, end).toString();
+    }
+
+    /** reads the longest item at a[off] within the len chars from there on, or returns null */
+    public String readItem(char[] a, int off, int len)
+    {
+        int end = itemEnd(a, off, len);
+        return end < 0 ? null : new String(a, off, end - off);
+    }
+
+    /** reads the longest item at b[off] within the len UTF-8 bytes from there on, or returns null */
+    public String readItem(byte[] b, int off, int len)
+    {
+        int end = itemEnd(b, off, len);
+        return end < 0 ? null : new String(b, off, end - off, RT.UTF8);
+    }
+
+    /**
+     * the index after the longest item at s[from], or -1 if there is none;
+     * like readItem, but builds no String, and with an automaton engine
+     * allocates nothing at all
+     */
+    public int itemEnd(CharSequence s, int from)
+    {
+        return itemEnd(s, null, from, s.length());
+    }
+
+    /** the index in a after the longest item at a[off], or -1, see itemEnd(CharSequence, int) */
+    public int itemEnd(char[] a, int off, int len)
+    {
+        return itemEnd(null, a, off, off + len);
+    }
+
+    /** the index in b after the longest item at b[off], or -1, see itemEnd(CharSequence, int) */
+    public int itemEnd(byte[] b, int off, int len)
+    {
+        if (useAutomaton())
+        {
+            int end = longest(b, off, off + len);
+            return end > off ? end : -1;
+        }
+        FeatureInputStream in = new FeatureInputStream(new ByteArrayInputStream(b, off, len));
+        return readItemStream(in) == null ? -1 : off + (int) in.position();
+    }
+
+    private int itemEnd(CharSequence s, char[] a, int from, int to)
+    {
+        if (useAutomaton())
+        {
+            int end = longest(s, a, from, to);
+            return end > from ? end : -1;
+        }
+        String item = readItemStream(stream(s, a, from, to));
+        return item == null ? -1 : from + item.length();
+    }
+
+    private String readItemStream(FeatureInputStream in)
+    {
+        try
+        {
+            return readItem(in);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * finds the first, longest match in s from index from on, as char
+     * indices, or returns null; s is searched in place in one pass, as
+     * find(FeatureInputStream) searches a stream
+     */
+    public Match find(CharSequence s, int from)
+    {
+        Finder f = new Finder(regex.chars(), regex.prefilter(), s, from);
+        return f.hasNext() ? f.next() : null;
+    }
+
+    /** a stream over the chars, for the lane engine */
+    private static FeatureInputStream stream(CharSequence s, char[] a, int from, int to)
+    {
+        String t = a != null ? new String(a, from, to - from) : s.subSequence(from, to).toString();
+        return new FeatureInputStream(new ByteArrayInputStream(t.getBytes(RT.UTF8)));
+    }
+
+    /**
+     * steps the automaton over a[from..to-1], or s when a is null; returns
+     * the index after the longest item at from, or -1, and sets lastRule.
+     * A byte automaton is stepped over the UTF-8 encoding of each character.
+     */
+    private int longest(CharSequence s, char[] a, int from, int to)
+    {
+        boolean bytes = bytesAutomaton();
+        int r = begin();
+        int end = r >= 0 ? from : -1, found = r;
+        for (int i = from; i < to && r != -2; )
+        {
+            int c = a != null ? a[i++] : s.charAt(i++);
+            if (bytes)
+            {
+                if (Character.isHighSurrogate((char) c) && i < to)
+                {
+                    char low = a != null ? a[i] : s.charAt(i);
+                    if (Character.isLowSurrogate(low))
+                    {
+                        c = Character.toCodePoint((char) c, low);
+                        i++;
+                    }
+                }
+                r = stepUtf8(c);
+            }
+            else
+            {
+                r = step(c);
+            }
+            if (r >= 0)
+            {
+                end = i;
+                found = r;
+            }
+        }
+        lastRule = end > from ? found : -1;
+        return end;
+    }
+
+    /** steps the UTF-8 encoding of the code point c */
+    private int stepUtf8(int c)
+    {
+        if (c < 0x80)
+        {
+            return step(c);
+        }
+        int n = c < 0x800 ? 1 : c < 0x10000 ? 2 : 3;
+        int r = step(0xF0 << 3 - n & 0xF0 | c >> 6 * n);
+        for (int k = n - 1; k >= 0 && r != -2; k--)
+        {
+            r = step(0x80 | c >> 6 * k & 0x3F);
+        }
+        return r;
+    }
+
+    /**
+     * steps the automaton over the UTF-8 bytes b[from..to-1], decoded as
+     * readUtf8 does by default for a char automaton; returns the index
+     * after the longest item at from, or -1, and sets lastRule
+     */
+    private int longest(byte[] b, int from, int to)
+    {
+        boolean bytes = bytesAutomaton();
+        int r = begin();
+        int end = r >= 0 ? from : -1, found = r;
+        for (int i = from; i < to && r != -2; )
+        {
+            int x = b[i++] & 0xFF;
+            int k = bytes || x >= 0xF8 ? 0 : x >= 0xF0 ? 3 : x >= 0xE0 ? 2 : x >= 0xC0 ? 1 : 0;
+            if (k == 0 || k > to - i || !continued(b, i, k))
+            {
+                r = step(x);    // a byte, or not UTF-8 and read as ISO-8859-1
+            }
+            else
+            {
+                x &= 0x3F >> k;
+                for (int j = 0; j < k; j++)
+                {
+                    x = x << 6 | b[i++] & 0x3F;
+                }
+                if (x >= 0x10000)
+                {
+                    r = step(Character.highSurrogate(x));
+                    r = r == -2 ? r : step(Character.lowSurrogate(x));
+                }
+                else
+                {
+                    r = step(x);
+                }
+            }
+            if (r >= 0)
+            {
+                end = i;
+                found = r;
+            }
+        }
+        lastRule = end > from ? found : -1;
+        return end;
+    }
+
+    private static boolean continued(byte[] b, int i, int k)
+    {
+        for (int j = i; j < i + k; j++)
+        {
+            if ((b[j] & 0xC0) != 0x80)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesLanes(FeatureInputStream in) throws IOException
+    {
+        Lanes lanes = lanes();
+        lanes.begin();
+        for (int c; (c = in.readUtf8()) != -1; )
+        {
+            if (!lanes.step(c))
+            {
+                return false;
+            }
+        }
+        return lanes.accepted >= 0;
+    }
+}
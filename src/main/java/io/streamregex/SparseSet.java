@@ -0,0 +1,35 @@
+package io.streamregex;
+
+/**
+ * A set of ints in 0..capacity-1 with constant time add, contains and clear
+ * (Briggs and Torczon).  Iterate over dense[0..size).
+ */
+final class SparseSet {
+
+    final int[] dense;
+    private final int[] sparse;
+    int size = 0;
+
+    SparseSet(int capacity)
+    {
+        dense = new int[capacity];
+        sparse = new int[capacity];
+    }
+
+    boolean contains(int x)
+    {
+        int i = sparse[x];
+        return i < size && dense[i] == x;
+    }
+
+    void add(int x)
+    {
+        sparse[x] = size;
+        dense[size++] = x;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+}
@@ -2,12 +2,17 @@ package io.streamregex;
 
 import io.FeatureInputStream;
 import util.SimpleHashCache;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
-import util.RT;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A regex for matching streams and for reading tokens from streams.
@@ -26,321 +31,402 @@ import util.RT;
  *
  * If you have other requirements, you could have a look at Streamflyer
  * (https://code.google.com/p/streamflyer/).
+ *
+ * The engine that runs the regex can be chosen per instance, see {@link Engine}.
+ *
+ * A StreamRegex does not change once it is built.  What a read matched is
+ * kept in a Session: threads share one instance and read through a
+ * session() each, while the reading methods here use a session of the
+ * instance, for one thread.
  */
 public class StreamRegex {
 
+    public enum Engine
+    {
+        /** simulates the SRNode graph directly with a list of lanes */
+        LANES,
+        /**
+         * builds DFA states on demand; falls back to LANES once its state
+         * budget has been exceeded
+         */
+        LAZY_DFA,
+        /**
+         * compiles the complete, minimized DFA up front; the constructor
+         * throws CompileEx if it would exceed the state limit
+         */
+        DFA,
+        /**
+         * runs the NFA as a Pike VM: linear time in the input and no
+         * allocation per character, without building any DFA states
+         */
+        PIKE_VM,
+        /**
+         * like DFA, but compiled down to UTF-8 bytes: the input is never
+         * decoded except for the items that readItem returns.  Expects
+         * well-formed UTF-8 rather than the Latin-1 fallback of readUtf8.
+         */
+        BYTES,
+        /**
+         * like DFA, but the DFA is compiled into a JVM class of its own whose
+         * transitions are inlined range comparisons, for the JIT to optimize
+         */
+        COMPILED
+    }
+
     public final SRNode root = new SRNode(null, null, 0);
     public final String pattern;
-    public SRNode lastMatchingFragment;
-    int lastMatchingLength = 0;
+    public final Engine engine;
+    final int stateLimit;
+    final Automaton automaton;
+    private Nfa bytes;
+    private Nfa chars;
+    private Prefilter prefilter;
+    private Dfa feedDfa;
+    private Session own;
 
     public int getLastMatchingFragmentOffset()
     {
-        return lastMatchingFragment.ancestorByRootDistance(1).offset;
+        return own().getLastMatchingFragmentOffset();
     }
     final SimpleHashCache<CharClass> charClassCache = new SimpleHashCache();
 
     public StreamRegex(String pattern)
     {
-        this.pattern = "(" + pattern + ")";
-        readPipe(root, new int[] {
-                0, 0
-            });    // {pattern-pos, group-count}
-        preprocess();
+        this(pattern, Engine.LANES);
     }
 
-    public static StreamRegex srx(String pattern)
+    public StreamRegex(String pattern, Engine engine)
     {
-        return new StreamRegex(pattern);
+        this(pattern, engine, LazyDfa.DEFAULT_BUDGET);
+    }
+
+    /** @param stateLimit the most DFA states an automaton engine may build */
+    public StreamRegex(String pattern, Engine engine, int stateLimit)
+    {
+        this(pattern, engine, stateLimit, null);
     }
-    
+
     /**
-     * this will hungrily match as much as possible - it will return null on a
-     * partial match and never backtrack!
+     * A pattern with a large bounded repetition of a character class, like
+     * [0-9a-f]{1,4096}, runs on the counters of the Pike VM whatever the
+     * automaton engine, as DFA states would have to count by themselves.
+     *
+     * @param rules the patterns of the rules for the automaton engines, or null for this pattern
      */
-    public String readItem(FeatureInputStream in) throws IOException
+    StreamRegex(String pattern, Engine engine, int stateLimit, List<SRNode> rules)
     {
-        StringBuilder b = new StringBuilder();
-        List<Matcher> lanes = matchers(root, new Matcher(root));
-        boolean prevPossiblyEnding = false;
-        for (int y = 0;; y++)
+        this.pattern = "(" + pattern + ")";
+        this.engine = engine;
+        this.stateLimit = stateLimit;
+        readPipe(root, new int[] {
+                0, 0
+            });    // {pattern-pos, group-count}
+        Nfa nfa = engine == Engine.LANES ? null
+                : Nfa.compile(rules != null ? rules : Collections.singletonList(root), true);
+        switch (nfa != null && nfa.counters > 0 ? Engine.PIKE_VM : engine)
         {
-            int c = in.readUtf8();
-            if (c == -1)
-            {
+            case LAZY_DFA:
+                automaton = new LazyDfa(nfa, stateLimit);
                 break;
-            }
-            for (int i = lanes.size() - 1; i >= 0; i--)
-            {
-                Matcher m = lanes.get(i);
-                m.ok = m.node.x != null && m.node.x.in(c);
-                if (m.ok)
-                {
-                    if (m.incMatchedCount(y) > m.node.max)
-                    {
-                        m.ok = false;
-                    }
-                }
-                else
-                {
-                    if (m.node.GROUP)
-                    {
-                        addChildren(c, matchers(m.node, m), lanes, y);
-                        if (m.node.next != null && m.node.min <= m.matchedCount && m.matchedCount <= m.node.max)
-                        {
-                            addChildren(c, matcher(m.node.next, m), lanes, y);
-                        }
-                    }
-                    else if (m.node.min <= m.matchedCount && m.matchedCount <= m.node.max)
-                    {
-                        if (m.node.next == null)
-                        {
-                            Matcher prev = backToGroup(m);
-                            if (prev != null)
-                            {
-                                if (prev.incMatchedCount(y) < prev.node.max)
-                                {
-                                    prev.ok = true;
-                                    lanes.add(prev);
-                                }
-                            }
-                        }
-                        else
-                        {
-                            addChildren(c, matchers(m.node, m), lanes, y);
-                        }
-                    }
-                }
-            }
-            if (!pruneLanes(lanes))
-            {
-                in.push(c);
-                if (in.peekChar() != -1 && !prevPossiblyEnding)
-                {
-                    if (lastMatchingLength > 0)
-                        return b.substring(0, lastMatchingLength);
-                    return null;
-                }
+            case DFA:
+                automaton = Dfa.compile(nfa, stateLimit, pattern);
                 break;
-            }
-            b.append((char) c);
-            boolean possiblyEnding = false;
-            for (Matcher lane : lanes)
-            {
-                possiblyEnding |= lane.node.POSSIBLY_ENDING_GROUP;
-            }
-            if (possiblyEnding)
-            {
-                lastMatchingLength = b.length();
-            }
-            if (!recycleLanes(y, lanes))
-            {
-                if (in.peekChar() != -1 && !possiblyEnding)
-                {
-                    if (lastMatchingLength > 0)
-                        return b.substring(0, lastMatchingLength);
-                    return null;
-                }
+            case BYTES:
+                automaton = Dfa.compile(nfa.toUtf8(), stateLimit, pattern);
                 break;
-            }
-            prevPossiblyEnding = possiblyEnding;
+            case PIKE_VM:
+                automaton = new PikeVm(nfa);
+                break;
+            case COMPILED:
+                automaton = new CompiledDfa(Dfa.compile(nfa, stateLimit, pattern), pattern);
+                break;
+            default:
+                automaton = null;
         }
-        return b.length() > 0 ? b.toString() : null;
     }
 
-    public boolean matches(FeatureInputStream in) throws IOException
+    public static StreamRegex srx(String pattern)
+    {
+        return new StreamRegex(pattern);
+    }
+
+    public static StreamRegex srx(String pattern, Engine engine)
     {
-        return matches(in, root);
+        return new StreamRegex(pattern, engine);
     }
 
-    private boolean matches(FeatureInputStream in, SRNode start) throws IOException
+    /**
+     * the number of states built so far: DFA states, or NFA states for the
+     * Pike VM, or 0 for the lane engine
+     */
+    public int stateCount()
     {
-        List<Matcher> lanes = matchers(start, new Matcher(start));
-        for (int y = 0;; y++)
+        return automaton != null ? automaton.size() : 0;
+    }
+
+    /** the byte program of this pattern, for scanning; see chars for the CompileEx it may throw */
+    synchronized Nfa bytes()
+    {
+        if (bytes == null)
         {
-            int c = in.readUtf8();
-            if (c == -1)
-            {
-                return true;
-            }
-            for (int i = lanes.size() - 1; i >= 0; i--)
-            {
-                Matcher m = lanes.get(i);
-                m.ok = m.node.x != null && m.node.x.in(c);
-                if (m.ok)
-                {
-                    if (m.incMatchedCount(y) > m.node.max)
-                    {
-                        m.ok = false;
-                    }
-                }
-                else
-                {
-                    if (m.node.GROUP)
-                    {
-                        addChildren(c, matchers(m.node, m), lanes, y);
-                        if (m.node.next != null && m.node.min <= m.matchedCount && m.matchedCount <= m.node.max)
-                        {
-                            addChildren(c, matcher(m.node.next, m), lanes, y);
-                        }
-                    }
-                    else if (m.node.min <= m.matchedCount && m.matchedCount <= m.node.max)
-                    {
-                        if (m.node.next == null)
-                        {
-                            Matcher prev = backToGroup(m);
-                            if (prev != null)
-                            {
-                                if (prev.incMatchedCount(y) < prev.node.max)
-                                {
-                                    prev.ok = true;
-                                    lanes.add(prev);
-                                }
-                            }
-                        }
-                        else
-                        {
-                            addChildren(c, matchers(m.node, m), lanes, y);
-                        }
-                    }
-                }
-            }
-            if (!pruneLanes(lanes))
-            {
-                return false;
-            }
-            if (!recycleLanes(y, lanes))
-            {
-                return in.peekChar() == -1;
-            }
+            bytes = chars().toUtf8();
         }
+        return bytes;
     }
 
-    Matcher backToGroup(Matcher m)
+    /**
+     * the char program of this pattern, for scanning streams that are not
+     * read bytewise; throws CompileEx for a pattern that needs the counters
+     * of the Pike VM, see Nfa.compileUncounted
+     */
+    synchronized Nfa chars()
     {
-        m = m.prev;
-        while (m != null)
+        if (chars == null)
         {
-            if (m.node.GROUP)
-            {
-                return m;
-            }
-            m = m.prev;
+            chars = Nfa.compileUncounted(Collections.singletonList(root), pattern);
         }
-        return null;
+        return chars;
+    }
+
+    /** a Finder over in, see Finder */
+    private Finder finder(FeatureInputStream in)
+    {
+        return new Finder(Finder.bytewise(in) ? bytes() : chars(), prefilter(), in);
     }
 
-    private void addChildren(int c, List<Matcher> addendum, List<Matcher> lanes, int y)
+    synchronized Prefilter prefilter()
     {
-        for (int j = addendum.size() - 1; j >= 0; j--)
+        if (prefilter == null)
         {
-            Matcher p = addendum.get(j);
-            if (p.node.x != null && p.node.x.in(c))
-            {
-                lanes.add(p);
-                p.incMatchedCount(y);
-            }
-            else
-            {
-                addChildren(c, matchers(p.node, p), lanes, y);
-            }
+            prefilter = new Prefilter(root, bytes(), chars());
         }
+        return prefilter;
+    }
+
+    /**
+     * skips the bytes of in that can not start a match, so that the next
+     * readItem starts at a candidate position
+     *
+     * @return the number of bytes skipped
+     */
+    public long seek(FeatureInputStream in) throws IOException
+    {
+        return prefilter().skip(in);
+    }
+
+    /**
+     * finds the first match anywhere in in, as byte offsets from the current
+     * position, or returns null; bytes read past the end of the match are
+     * consumed, see findAll for reading on; throws CompileEx for a pattern
+     * with a counted repetition, which only readItem and matches run
+     */
+    public Match find(FeatureInputStream in)
+    {
+        Finder f = finder(in);
+        return f.hasNext() ? f.next() : null;
+    }
+
+    /**
+     * finds the leftmost-longest, non-overlapping matches anywhere in in, in
+     * one pass, as byte offsets from the current position; the stream is
+     * read as the results are consumed
+     */
+    public Stream<Match> findAll(FeatureInputStream in)
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                finder(in), Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
-    private boolean pruneLanes(List<Matcher> lanes)
+    /**
+     * whether all the UTF-8 bytes b[off..off+len-1] match, with the byte DFA
+     * run over chunks of them on all cores; see ParallelScan.  The DFA is
+     * compiled on first use, and may throw CompileEx
+     */
+    public boolean matchesParallel(byte[] b, int off, int len)
     {
-        boolean ok = false;
-        for (int i = lanes.size() - 1; i >= 0; i--)
+        try
         {
-            Matcher m = lanes.get(i);
-            if (m.ok)
-            {
-                ok = true;
-                lastMatchingFragment = m.node;
-            }
-            else
-            {
-                lanes.remove(i);
-            }
+            return ParallelScan.of(len).matches(feedDfa(), ParallelScan.of(b, off, len));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
         }
-        return ok;
     }
 
-    private boolean recycleLanes(int y, List<Matcher> lanes)
+    /** whether all of a UTF-8 file matches, see matchesParallel(byte[], int, int) */
+    public boolean matchesParallel(Path file) throws IOException
     {
-        for (int i = lanes.size() - 1; i >= 0; i--)
+        ParallelScan.Input in = ParallelScan.of(file);
+        return ParallelScan.of(in.length).matches(feedDfa(), in);
+    }
+
+    /**
+     * the matches that findAll would report in b[off..off+len-1], as indices
+     * in b, found in chunks of it on all cores
+     */
+    public List<Match> findAllParallel(byte[] b, int off, int len)
+    {
+        try
         {
-            Matcher m = lanes.get(i);
-            if (m.matchedCount == m.node.max)
-            {
-                boolean replaced = false;
-                SRNode next = m.node.next != null ? m.node.next : m.next;
-                if (next != null)
-                {
-                    lanes.set(i, new Matcher(next).prev_(m));
-                    replaced = true;
-                }
-                if (m.node.POSSIBLY_ENDING_GROUP && m.node.grouppar != null)
-                {
-                    Matcher g = m;
-                    while ((g = backToGroup(g)) != null)
-                    {
-                        if (g.incMatchedCount(y) < g.node.max)
-                        {
-                            if (!replaced)
-                            {
-                                lanes.set(i, g);
-                                replaced = true;
-                            }
-                            else
-                            {
-                                lanes.add(g);
-                            }
-                            g.ok = true;
-                        }
-                    }
-                }
-                if (!replaced)
-                {
-                    lanes.remove(i);
-                }
-            }
+            List<Match> ms = ParallelScan.of(len).findAll(bytes(), prefilter(), ParallelScan.of(b, off, len));
+            ms.replaceAll(m -> new Match(off + m.start, off + m.end));
+            return ms;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
         }
-        return lanes.size() > 0;
     }
 
-    private List<Matcher> matchers(SRNode start, Matcher prev)
+    /** the matches that findAll would report in a file, found in chunks of it on all cores */
+    public List<Match> findAllParallel(Path file) throws IOException
+    {
+        ParallelScan.Input in = ParallelScan.of(file);
+        return ParallelScan.of(in.length).findAll(bytes(), prefilter(), in);
+    }
+
+    /** the rule id of the item that the lane engine read last in session */
+    int laneRule(Session session)
+    {
+        return 0;
+    }
+
+    /** the patterns of the rules, where the one at i accepts rule id i */
+    List<SRNode> rules()
     {
-        return start.GROUP ? matchers(start.any, start.next, prev) : matcher(start.next, prev);
+        return Collections.singletonList(root);
     }
 
-    private List<Matcher> matchers(List<SRNode> ss, SRNode next, Matcher prev)
+    /** the byte DFA of the rules, for feeding */
+    private synchronized Dfa feedDfa()
     {
-        List<Matcher> ret = new ArrayList<>();
-        if (ss != null)
+        if (feedDfa == null)
         {
-            for (SRNode s : ss)
-            {
-                ret.add(new Matcher(s).prev_(prev));
-            }
-            for (Matcher m : ret)
-            {
-                m.next = next;
-            }
+            feedDfa = automaton instanceof Dfa && ((Dfa) automaton).bytes ? (Dfa) automaton
+                    : Dfa.compile(Nfa.compileUncounted(rules(), pattern).toUtf8(), stateLimit, pattern);
         }
-        return ret;
+        return feedDfa;
+    }
+
+    /**
+     * a Feed that tells whether the chunks pushed to it match this pattern;
+     * the byte DFA it runs is compiled on first use, and may throw CompileEx
+     * when it exceeds the state limit or the pattern has a counted repetition
+     */
+    public Feed feed()
+    {
+        return new Feed(feedDfa(), null);
+    }
+
+    /** a Feed that cuts the chunks pushed to it into tokens of this pattern, see feed() */
+    public Feed feed(Feed.Sink sink)
+    {
+        return new Feed(feedDfa(), sink);
     }
 
-    private List<Matcher> matcher(SRNode s, Matcher prev)
+    /**
+     * a session for reading with this pattern, with the match state of its
+     * own; sessions let threads share one compiled StreamRegex
+     */
+    public Session session()
     {
-        List<Matcher> ret = new ArrayList<>();
-        if (s != null)
+        return newSession(automaton != null ? automaton.fork() : null);
+    }
+
+    Session newSession(Automaton automaton)
+    {
+        return new Session(this, automaton);
+    }
+
+    /** the session that the reading methods of this instance run in */
+    Session own()
+    {
+        if (own == null)
         {
-            Matcher m = new Matcher(s).prev_(prev);
-            m.next = m.node.next;
-            ret.add(m);
+            own = newSession(automaton);
         }
-        return ret;
+        return own;
+    }
+
+    /** see Session.readItem(FeatureInputStream) */
+    public String readItem(FeatureInputStream in) throws IOException
+    {
+        return own().readItem(in);
+    }
+
+    /** see Session.readToken(FeatureInputStream, TokenSpan) */
+    public boolean readToken(FeatureInputStream in, TokenSpan token) throws IOException
+    {
+        return own().readToken(in, token);
+    }
+
+    public boolean matches(FeatureInputStream in) throws IOException
+    {
+        return own().matches(in);
+    }
+
+    /** whether all of s matches; s is read in place, without a stream */
+    public boolean matches(CharSequence s)
+    {
+        return own().matches(s);
+    }
+
+    /** whether the chars a[off..off+len-1] match */
+    public boolean matches(char[] a, int off, int len)
+    {
+        return own().matches(a, off, len);
+    }
+
+    /** whether the UTF-8 bytes b[off..off+len-1] match */
+    public boolean matches(byte[] b, int off, int len)
+    {
+        return own().matches(b, off, len);
+    }
+
+    /** see Session.readItem(CharSequence, int) */
+    public String readItem(CharSequence s, int from)
+    {
+        return own().readItem(s, from);
+    }
+
+    public String readItem(char[] a, int off, int len)
+    {
+        return own().readItem(a, off, len);
+    }
+
+    public String readItem(byte[] b, int off, int len)
+    {
+        return own().readItem(b, off, len);
+    }
+
+    /** see Session.itemEnd(CharSequence, int) */
+    public int itemEnd(CharSequence s, int from)
+    {
+        return own().itemEnd(s, from);
+    }
+
+    public int itemEnd(char[] a, int off, int len)
+    {
+        return own().itemEnd(a, off, len);
+    }
+
+    public int itemEnd(byte[] b, int off, int len)
+    {
+        return own().itemEnd(b, off, len);
+    }
+
+    /** see Session.find(CharSequence, int) */
+    public Match find(CharSequence s, int from)
+    {
+        return own().find(s, from);
+    }
+
+    /** finds the first match in the UTF-8 bytes b[off..off+len-1], as indices in b, or returns null */
+    public Match find(byte[] b, int off, int len)
+    {
+        Match m = find(new FeatureInputStream(new ByteArrayInputStream(b, off, len)));
+        return m == null ? null : new Match(off + m.start, off + m.end);
     }
 
     private boolean throwEx(String msg, int[] ii)
@@ -495,7 +581,7 @@ public class StreamRegex {
             }
             else
             {
-                (negation ? cc.out : cc.in()).set(b);
+                (negation ? cc.out() : cc.in()).set(b);
             }
             if (pattern.length() == ii[0])
             {
@@ -667,340 +753,4 @@ public class StreamRegex {
         ii[0]++;
         return true;
     }
-
-    private void preprocess()
-    {
-        preprocessPossiblyEnding(root);
-    }
-
-    private boolean preprocessPossiblyEnding(SRNode a)
-    {
-        if (a == null)
-        {
-            return true;
-        }
-        a.POSSIBLY_ENDING_GROUP = preprocessPossiblyEnding(a.next);
-        if (a.any != null)
-        {
-            for (SRNode b : a.any)
-            {
-                a.POSSIBLY_ENDING_GROUP &= preprocessPossiblyEnding(b);
-            }
-        }
-        if (!a.GROUP && a.min > 0)
-        {
-            return false;
-        }  // return false for sake of previous
-        return a.POSSIBLY_ENDING_GROUP;
-    }
-}
-
-class SRNode {
-
-    CharClass x;
-    SRNode prev;
-    SRNode next;
-    boolean GROUP = false;
-    boolean POSSIBLY_ENDING_GROUP = false;
-    SRNode grouppar;
-    List<SRNode> any;
-    int min = 1, max = 1;
-    int offset = 0;
-    int nestingLevel = 0;
-
-    SRNode(CharClass x, SRNode prev, int offset)
-    {
-        this.x = x;
-        this.prev = prev;
-        this.offset = offset;
-        SRNode it = prev;
-        while (it != null && !it.GROUP)
-        {
-            it = it.prev;
-        }
-        if (it != null && it.GROUP)
-        {
-            grouppar = it;
-        }
-        it = prev;
-        for (; it != null; nestingLevel++)
-        {
-            it = it.prev;
-        }
-    }
-
-    SRNode setNext(SRNode c)
-    {
-        if (next != null)
-        {
-            if (GROUP)
-            {
-                addAny(next);
-            }
-            else
-            {
-                throw new RuntimeException("Attempt to redefine node.next");
-            }
-        }
-        next = c;
-        return this;
-    }
-
-    void addAny(SRNode c)
-    {
-        if (any == null)
-        {
-            any = new ArrayList<>();
-        }
-        any.add(c);
-    }
-
-    public String toString()
-    {
-        return (x != null ? x : "") + (GROUP ? " G {" : " {") + min + "," + max + "}";
-    }
-
-    static void print(PrintStream out, SRNode n)
-    {
-        print_(out, n, 0);
-    }
-
-    static void print_(PrintStream out, SRNode n, int ind)
-    {
-        out.print(util.Arf.repeat(' ', ind));
-        out.println(n.toString());
-        if (n.any != null)
-        {
-            //out.println(new String(f.Arf.repeat(' ', ind)) + "ANY:");
-            for (SRNode c : n.any)
-            {
-                print_(out, c, ind + 2);
-            }
-            out.println(util.Arf.repeat('-', ind + 4));
-        }
-        if (n.next != null)
-        {
-            print_(out, n.next, ind + 2);
-        }
-    }
-
-    SRNode ancestorByRootDistance(int distFromRoot)
-    {
-        if (distFromRoot > nestingLevel)
-        {
-            return null;
-        }
-        int i = nestingLevel;
-        SRNode it = this;
-        while (i-- > distFromRoot)
-        {
-            it = it.prev;
-        }
-        return it;
-    }
-}
-
-class CharRange {
-
-    int start, end;
-
-    CharRange(int a, int b)
-    {
-        this.start = a;
-        this.end = b;
-    }
-
-    boolean in(int x)
-    {
-        return start <= x && x <= end;
-    }
-
-    public String toString()
-    {
-        return (char) start + "-" + (char) end;
-    }
-
-    @Override
-    public int hashCode()
-    {
-        return end * 31 + start;
-    }
-
-    @Override
-    public boolean equals(Object obj)
-    {
-        if (!(obj instanceof CharRange))
-        {
-            return false;
-        }
-        CharRange x = (CharRange) obj;
-        return start == x.start && end == x.end;
-    }
-
-}
-
-class CharClass {
-
-    int x = -1;
-    BitSet out = new BitSet(2048);
-    List<CharRange> outr = new ArrayList<>();
-    BitSet in = null;
-    List<CharRange> inr = new ArrayList<>();
-
-    BitSet in()
-    {
-        if (in == null)
-        {
-            in = new BitSet(2048);
-        }
-        return in;
-    }
-
-    void simplify()
-    {
-        if (in != null)
-        {
-            for (int j = inr.size() - 1; j >= 0; j--)
-            {
-                CharRange r = inr.get(j);
-                int high = Math.min(r.end, in.size());
-                for (int i = r.start; i <= high; i++)
-                {
-                    in.set(i);
-                }
-                if (r.end < in.size())
-                {
-                    inr.remove(j);
-                }
-            }
-            for (int j = outr.size() - 1; j >= 0; j--)
-            {
-                CharRange r = outr.get(j);
-                int high = Math.min(r.end, in.size());
-                for (int i = r.start; i <= high; i++)
-                {
-                    in.clear(i);
-                }
-                if (r.end < in.size())
-                {
-                    outr.remove(j);
-                }
-            }
-            for (int i = 0; i < out.length(); i++)
-            {
-                if (out.get(i))
-                {
-                    in.clear(i);
-                }
-            }
-            out = null;
-        }
-        if (inr.size() == 0)
-        {
-            inr = null;
-        }
-        if (outr.size() == 0)
-        {
-            outr = null;
-        }
-    }
-
-    boolean in(int x)
-    {
-        return this.x == x
-                || this.x == -1
-                && !listfind(outr, x)
-                && (out == null || !out.get(x))
-                && ((in != null && in.get(x) || in == null && inr == null || listfind(inr, x)));
-    }
-
-    private boolean listfind(List<CharRange> L, int x)
-    {
-        if (L == null)
-        {
-            return false;
-        }
-        for (CharRange r : L)
-        {
-            if (r.in(x))
-            {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    public String toString()
-    {
-        return (x != -1 ? "'" + (char) x + "'" : "[  ")
-                + "  " + (outr != null ? "outr:" + outr : "")
-                + "  " + (out != null ? "out:" + out : "")
-                + "  " + (inr != null ? "inr:" + inr : "")
-                + "  " + (in != null ? "in" + in : "");
-    }
-
-    @Override
-    public int hashCode()
-    {
-        if (x >= 0)
-        {
-            return x;
-        }
-        int ret = RT.nullSafeHashCode(outr) * 31
-                + RT.nullSafeHashCode(out) * 31
-                + RT.nullSafeHashCode(in) * 31
-                + RT.nullSafeHashCode(inr)
-                ;
-        return ret;
-    }
-
-    @Override
-    public boolean equals(Object obj)
-    {
-        if (!(obj instanceof CharClass))
-        {
-            return false;
-        }
-        CharClass c = (CharClass) obj;
-        if (x >= 0 || c.x >= 0)
-        {
-            return x == c.x;
-        }
-        return !(!RT.nullSafeEquals(outr, c.outr)
-                || !RT.nullSafeEquals(out, c.out)
-                || !RT.nullSafeEquals(in, c.in)
-                || !RT.nullSafeEquals(inr, c.inr));
-    }
-
-}
-
-class Matcher {
-
-    SRNode node;
-    SRNode next;
-    Matcher prev;
-    boolean ok = true;
-    int matchedCount = 0,
-            y = -1;
-
-    Matcher(SRNode x)
-    {
-        this.node = x;
-    }
-
-    int incMatchedCount(int y)
-    {
-        if (this.y != y)
-        {
-            matchedCount++;
-            this.y = y;
-        }
-        return matchedCount;
-    }
-
-    Matcher prev_(Matcher prev)
-    {
-        this.prev = prev;
-        return this;
-    }
 }
@@ -0,0 +1,31 @@
+package io.streamregex;
+
+/**
+ * A token of RegexMapper.tokens: its text, the object its rule maps to, and
+ * where it is in the input as byte offsets.  A character that starts no
+ * token is reported alone, with rule -1 and no referend.
+ *
+ * @param <T> the type of objects referenced
+ */
+public final class Token<T> {
+
+    public final String text;
+    public final T referend;
+    public final int rule;
+    public final long start, end;
+
+    public Token(String text, T referend, int rule, long start, long end)
+    {
+        this.text = text;
+        this.referend = referend;
+        this.rule = rule;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s %s <%d,%d>", referend, text, start, end);
+    }
+}
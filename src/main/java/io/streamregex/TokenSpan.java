@@ -0,0 +1,225 @@
+package io.streamregex;
+
+import io.Encoding;
+import io.FeatureInputStream;
+import java.util.Arrays;
+
+/**
+ * Where the last token read by StreamRegex.readToken is in its stream: byte
+ * offsets and the rule id, with a CharSequence view of the text.
+ *
+ * A span is reused from token to token, and the view decodes the bytes
+ * kept by the stream only when it is first asked for a character, into a
+ * buffer of its own; comparing tokens with contentEquals does not decode
+ * ASCII at all.  The span is valid until the stream reads on, as the
+ * stream keeps the bytes of a token only while the token is read.  The
+ * bytes are decoded in the Encoding of the stream, and characters outside
+ * the BMP into surrogate pairs.
+ */
+public final class TokenSpan implements CharSequence {
+
+    private FeatureInputStream in;
+    private long start = 0,
+            end = 0;
+    private int rule = -1;
+    private char[] chars = new char[16];
+    /** the number of characters decoded, or -1 before decoding */
+    private int length = -1;
+
+    /** sets the span; returns whether it is not empty */
+    boolean set(FeatureInputStream in, long start, long end, int rule)
+    {
+        this.in = in;
+        this.start = start;
+        this.end = end;
+        this.rule = end > start ? rule : -1;
+        this.length = -1;
+        return end > start;
+    }
+
+    /** the offset of the first byte */
+    public long start()
+    {
+        return start;
+    }
+
+    /** the offset after the last byte */
+    public long end()
+    {
+        return end;
+    }
+
+    public int byteLength()
+    {
+        return (int) (end - start);
+    }
+
+    /** the byte at index i of the span */
+    public int byteAt(int i)
+    {
+        return in.byteAt(start + i);
+    }
+
+    /** the rule id of the token, or -1 for an empty span */
+    public int rule()
+    {
+        return rule;
+    }
+
+    private void decode()
+    {
+        if (length >= 0)
+        {
+            return;
+        }
+        Encoding encoding = in.getEncoding();
+        if (encoding.singleByte || encoding == Encoding.UTF_16BE || encoding == Encoding.UTF_16LE)
+        {
+            decodeUnits(encoding);
+            return;
+        }
+        int n = 0;
+        for (long p = start; p < end; )
+        {
+            if (n + 2 > chars.length)
+            {
+                chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+            int x = in.byteAt(p++);
+            int k = x >= 0xF8 ? 0 : x >= 0xF0 ? 3 : x >= 0xE0 ? 2 : x >= 0xC0 ? 1 : 0;
+            if (k == 0 || k > end - p || !continued(p, k))
+            {
+                chars[n++] = (char) x;      // not UTF-8, as in readUtf8: ISO-8859-1
+                continue;
+            }
+            x &= 0x3F >> k;
+            for (int i = 0; i < k; i++)
+            {
+                x = x << 6 | in.byteAt(p++) & 0x3F;
+            }
+            if (x >= 0x10000)
+            {
+                chars[n++] = Character.highSurrogate(x);
+                chars[n++] = Character.lowSurrogate(x);
+            }
+            else
+            {
+                chars[n++] = (char) x;
+            }
+        }
+        length = n;
+    }
+
+    /** decodes one byte or one UTF-16 unit per char */
+    private void decodeUnits(Encoding encoding)
+    {
+        int step = encoding.singleByte ? 1 : 2;
+        int n = (int) (end - start) / step;
+        if (n > chars.length)
+        {
+            chars = Arrays.copyOf(chars, n);
+        }
+        for (int i = 0; i < n; i++)
+        {
+            long p = start + (long) i * step;
+            chars[i] = (char) (step == 1 ? in.byteAt(p)
+                    : encoding == Encoding.UTF_16BE ? in.byteAt(p) << 8 | in.byteAt(p + 1)
+                    : in.byteAt(p + 1) << 8 | in.byteAt(p));
+        }
+        length = n;
+    }
+
+    private boolean continued(long p, int k)
+    {
+        for (int i = 0; i < k; i++)
+        {
+            if ((in.byteAt(p + i) & 0xC0) != 0x80)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length()
+    {
+        decode();
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        decode();
+        if (index < 0 || index >= length)
+        {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to)
+    {
+        return toString().substring(from, to);
+    }
+
+    /** whether the text of this span is s */
+    public boolean contentEquals(CharSequence s)
+    {
+        Encoding encoding = in.getEncoding();
+        if (length < 0 && s.length() == end - start && encoding != Encoding.UTF_16BE && encoding != Encoding.UTF_16LE)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                int b = byteAt(i);
+                if (b >= 0x80)
+                {
+                    return contentEquals(s, length());
+                }
+                if (b != s.charAt(i))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return contentEquals(s, length());
+    }
+
+    private boolean contentEquals(CharSequence s, int n)
+    {
+        if (s.length() != n)
+        {
+            return false;
+        }
+        for (int i = 0; i < n; i++)
+        {
+            if (chars[i] != s.charAt(i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** the hash code that the String of this span would have */
+    public int contentHash()
+    {
+        decode();
+        int h = 0;
+        for (int i = 0; i < length; i++)
+        {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    @Override
+    public String toString()
+    {
+        decode();
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,122 @@
+package io.streamregex;
+
+import io.FeatureInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The tokens of the bytes from..to-1 of an input, read one at a time.
+ *
+ * A split cuts the range after the first match of the sync pattern from
+ * its middle on, so the sync pattern must only match where no token goes
+ * across, like a newline between the lines of a log.  The part before the
+ * cut is handed off with a session of its own.  A range is only split
+ * before it is read from.
+ */
+final class TokenSpliterator<T> implements Spliterator<Token<T>> {
+
+    private final MapperSession<T> session;
+    private final StreamRegex sync;
+    private final ParallelScan.Input input;
+    private final int minSplit;
+    /** the streams that are open, for closing the Stream */
+    private final Collection<FeatureInputStream> open;
+    private final TokenSpan span = new TokenSpan();
+    private long from, to;
+    private FeatureInputStream in;
+
+    TokenSpliterator(MapperSession<T> session, StreamRegex sync, ParallelScan.Input input, long from, long to, int minSplit,
+            Collection<FeatureInputStream> open)
+    {
+        this.session = session;
+        this.sync = sync;
+        this.input = input;
+        this.from = from;
+        this.to = to;
+        this.minSplit = minSplit;
+        this.open = open;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Token<T>> action)
+    {
+        try
+        {
+            if (in == null)
+            {
+                if (from >= to)
+                {
+                    return false;
+                }
+                in = input.range(from, to);
+                open.add(in);
+            }
+            if (session.readNext(in, span))
+            {
+                action.accept(new Token<>(span.toString(), session.getReferend(span.rule()), span.rule(),
+                        from + span.start(), from + span.end()));
+                return true;
+            }
+            long p = in.position();
+            int c = in.readUtf8();
+            if (c == -1)
+            {
+                open.remove(in);
+                in.close();
+                from = to;
+                return false;
+            }
+            String text = Character.isHighSurrogate((char) c) ? new String(new char[] { (char) c, (char) in.readUtf8() })
+                    : String.valueOf((char) c);
+            action.accept(new Token<>(text, null, -1, from + p, from + in.position()));
+            return true;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Spliterator<Token<T>> trySplit()
+    {
+        if (in != null || to - from < 2L * minSplit)
+        {
+            return null;
+        }
+        long mid = from + (to - from) / 2;
+        Match m;
+        try (FeatureInputStream s = input.range(mid, to))
+        {
+            m = sync.find(s);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        if (m == null || mid + m.end >= to)
+        {
+            return null;
+        }
+        long cut = mid + m.end;
+        TokenSpliterator<T> prefix = new TokenSpliterator<>(session.mapper.session(), sync, input, from, cut, minSplit, open);
+        from = cut;
+        return prefix;
+    }
+
+    /** the number of bytes left, as tokens are not counted ahead */
+    @Override
+    public long estimateSize()
+    {
+        return to - from;
+    }
+
+    @Override
+    public int characteristics()
+    {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,18 @@
+package io.streamregex.gen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an enum whose constants are token rules, see Rule.  At build time
+ * LexerProcessor generates a lexer class for them next to the enum.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Lexer {
+
+    /** the simple name of the generated class, by default the enum's name followed by Lexer */
+    String name() default "";
+}
@@ -0,0 +1,75 @@
+package io.streamregex.gen;
+
+import io.streamregex.LexerGenerator;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the lexer source of every Lexer enum with LexerGenerator, so
+ * that the patterns are compiled when the project is built rather than when
+ * it starts.  It is not registered as a service, so that code which only
+ * uses the library is not processed: name it to javac with -processor, or
+ * in the annotationProcessors of the maven-compiler-plugin.
+ */
+@SupportedAnnotationTypes("io.streamregex.gen.Lexer")
+public class LexerProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env)
+    {
+        for (Element e : env.getElementsAnnotatedWith(Lexer.class))
+        {
+            if (e.getKind() != ElementKind.ENUM)
+            {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Lexer goes on an enum", e);
+                continue;
+            }
+            List<String> names = new ArrayList<>(), patterns = new ArrayList<>();
+            for (Element c : e.getEnclosedElements())
+            {
+                Rule r = c.getAnnotation(Rule.class);
+                if (c.getKind() == ElementKind.ENUM_CONSTANT && r != null)
+                {
+                    names.add(c.getSimpleName().toString());
+                    patterns.add(r.value());
+                }
+            }
+            String pkg = processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();
+            String name = e.getAnnotation(Lexer.class).name();
+            if (name.isEmpty())
+            {
+                name = e.getSimpleName() + "Lexer";
+            }
+            try
+            {
+                String source = LexerGenerator.generate(pkg, name, ((TypeElement) e).getQualifiedName().toString(), names, patterns);
+                try (Writer w = processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, e).openWriter())
+                {
+                    w.write(source);
+                }
+            }
+            catch (IOException | RuntimeException x)
+            {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "can not generate " + name + ": " + x.getMessage(), e);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,18 @@
+package io.streamregex.gen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The pattern of a token rule, on a constant of a Lexer enum.  Rules are
+ * tried in declaration order: the longest token wins, and on a tie the rule
+ * declared first.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Rule {
+
+    String value();
+}
@@ -1,6 +1,5 @@
 package util;
 
-import io.CachingInputStream;
 import io.FeatureInputStream;
 import io.ParseEx;
 import java.io.ByteArrayInputStream;
@@ -114,7 +113,7 @@ public class RT
     static public FeatureInputStream fin(InputStream in) 
     {
         return (in instanceof FeatureInputStream) ? (FeatureInputStream)in 
-                : new FeatureInputStream(in instanceof CachingInputStream ? in : new CachingInputStream(in)) ;
+                : new FeatureInputStream(in) ;
     }
     
     static public FeatureInputStream fin(String s) 
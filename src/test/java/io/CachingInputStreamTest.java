@@ -31,4 +31,33 @@ public class CachingInputStreamTest {
         assertEquals('b', ci.read());
     }
     
+    @Test
+    public void testRetention() throws IOException
+    {
+        CachingInputStream ci = new CachingInputStream(new ByteArrayInputStream(new byte[100000]), 10000);
+        ci.mark();
+        for(int i = 0; i < 9000; i++) ci.read();
+        assertEquals(9000, ci.rewind());
+        assertEquals(9000, ci.queueLength());
+        for(int i = 0; i < 100; i++) ci.read();
+        assertEquals(8900, ci.queueLength());
+        for(int i = 0; i < 20000; i++) ci.read();
+        assertEquals(0, ci.queueLength());
+        try
+        {
+            ci.rewind();
+            fail("the mark is past the retention limit");
+        }
+        catch(RuntimeException expected) { }
+        ci.mark();
+        ci.read();
+        ci.commit();
+        try
+        {
+            ci.rewind();
+            fail("the mark is committed");
+        }
+        catch(RuntimeException expected) { }
+    }
+    
 }
@@ -0,0 +1,168 @@
+package io;
+
+import java.io.ByteArrayInputStream;
+import io.streamregex.Match;
+import io.streamregex.StreamRegex;
+import java.util.Arrays;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FeatureInputStreamTest {
+
+    @Test
+    public void testRewindAcrossRefills() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for(int i = 0; i < 5000; i++) b.append("abä");
+        String s = b.toString();
+        FeatureInputStream fin = new FeatureInputStream(new ByteArrayInputStream(s.getBytes("UTF-8")));
+        for(int i = 0; i < 3; i++) fin.readUtf8();
+        fin.mark();
+        for(int i = 0; i < 9000; i++) fin.readUtf8();
+        assertEquals(12000, fin.rewind());
+        assertEquals(s.substring(3, 9003), new String(fin.readCharArray(9000)));
+        assertEquals(s.substring(3, 9003), fin.readMarked());
+        int ch = fin.readUtf8();
+        fin.push(ch);
+        assertEquals('a', fin.readUtf8());
+        assertEquals('b', fin.peekChar());
+        assertEquals(-1, new FeatureInputStream(new ByteArrayInputStream(new byte[0])).read());
+    }
+
+    @Test
+    public void testLazyLineAndColumn() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for(int i = 0; i < 10000; i++) b.append("ab\r\nä\n");
+        FeatureInputStream fin = new FeatureInputStream(new ByteArrayInputStream(b.toString().getBytes("UTF-8")), 100);
+        assertEquals(1, fin.getLine());
+        assertEquals(1, fin.getCol());
+        for(int i = 0; i < 6 * 5000 + 1; i++) fin.readUtf8();
+        assertEquals(10001, fin.getLine());
+        assertEquals(2, fin.getCol());
+        fin.mark();
+        for(int i = 0; i < 7; i++) fin.readUtf8();
+        assertEquals(10003, fin.getLine());
+        assertEquals(3, fin.getCol());
+        fin.rewind();
+        assertEquals(10001, fin.getLine());
+        assertEquals(2, fin.getCol());
+        while(fin.readByte() != -1) ;
+        assertEquals(20001, fin.getLine());
+        assertEquals(1, fin.getCol());
+    }
+
+    @Test
+    public void testPushSupplementary() throws IOException
+    {
+        String s = "a\uD83D\uDE00x";
+        FeatureInputStream fin = fin(s, "UTF-8", Encoding.GUESS);
+        assertEquals('a', fin.readUtf8());
+        assertEquals(0xD83D, fin.readUtf8());
+        assertEquals(0xDE00, fin.readUtf8());
+        fin.push(0xDE00);
+        assertEquals(5, fin.position());
+        assertEquals(0xDE00, fin.peekChar());
+        assertEquals(0xDE00, fin.readUtf8());
+        fin.push(0xDE00);
+        fin.push(0xD83D);
+        assertEquals(1, fin.position());
+        assertEquals(s.substring(1), new String(fin.readCharArray(3)));
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            fin = fin(s, "UTF-8", Encoding.UTF_8);
+            assertNull(engine.toString(), new StreamRegex("a[^b]c", engine).readItem(fin));
+            assertEquals(0, fin.position());
+            if (engine != StreamRegex.Engine.BYTES)
+            {
+                assertEquals(engine.toString(), s, new StreamRegex("a[^b]+", engine).readItem(fin(s, "UTF-8", Encoding.UTF_8)));
+            }
+        }
+    }
+
+    private static FeatureInputStream fin(String s, String charset, Encoding encoding) throws IOException
+    {
+        return new FeatureInputStream(new ByteArrayInputStream(s.getBytes(charset)), encoding);
+    }
+
+    @Test
+    public void testFindEncodings() throws IOException
+    {
+        StreamRegex r = new StreamRegex("ét");
+        assertEquals(new Match(2, 4), r.find(fin("xxété", "ISO-8859-1", Encoding.LATIN_1)));
+        assertEquals(new Match(4, 8), r.find(fin("abét", "UTF-16BE", Encoding.UTF_16BE)));
+        assertEquals(new Match(2, 6), r.find(fin("xét", "UTF-16LE", Encoding.UTF_16LE)));
+        assertEquals(new Match(2, 5), r.find(fin("xxété", "UTF-8", Encoding.UTF_8)));
+        assertEquals("[<2,4>, <5,7>]", Arrays.toString(r.findAll(fin("xxétéét", "ISO-8859-1", Encoding.LATIN_1)).toArray()));
+        assertEquals("[<4,10>]", Arrays.toString(new StreamRegex("[\u0100-\uFFFF]+").findAll(
+                fin("ab\u0101\uD834\uDD1Ecd", "UTF-16BE", Encoding.UTF_16BE)).toArray()));
+        FeatureInputStream fin = fin("xxété", "ISO-8859-1", Encoding.LATIN_1);
+        assertEquals(2, r.seek(fin));
+        assertEquals("ét", r.readItem(fin));
+        fin = fin("a\uD834\uDD1Eét", "UTF-16LE", Encoding.UTF_16LE);
+        assertEquals(6, r.seek(fin));
+        assertEquals("ét", r.readItem(fin));
+        StreamRegex nonX = new StreamRegex("[^x]+");
+        for (Encoding e : new Encoding[] { Encoding.GUESS, Encoding.UTF_8 })
+        {
+            assertEquals(e.toString(), new Match(1, 5), nonX.find(fin("x\uD83D\uDE00x", "UTF-8", e)));
+            assertEquals(e.toString(), "[<1,7>, <8,10>]", Arrays.toString(new StreamRegex("ä\uD83D\uDE00|é").findAll(
+                    fin("xä\uD83D\uDE00xé", "UTF-8", e)).toArray()));
+        }
+        byte[] latin = { 'x', (byte) 0xE4, 'x', (byte) 0xC3, (byte) 0xA4 };
+        StreamRegex umlaut = new StreamRegex("ä");
+        assertEquals("[<1,2>, <3,5>]", Arrays.toString(umlaut.findAll(
+                new FeatureInputStream(new ByteArrayInputStream(latin))).toArray()));
+        fin = new FeatureInputStream(new ByteArrayInputStream(latin));
+        assertEquals(1, umlaut.seek(fin));
+        assertEquals("ä", umlaut.readItem(fin));
+    }
+
+    @Test
+    public void testEncodings() throws IOException
+    {
+        String s = "aé\uD834\uDD1Eb";
+        for (Encoding e : new Encoding[] { Encoding.GUESS, Encoding.UTF_8, Encoding.UTF_16BE, Encoding.UTF_16LE })
+        {
+            String charset = e == Encoding.UTF_16BE ? "UTF-16BE" : e == Encoding.UTF_16LE ? "UTF-16LE" : "UTF-8";
+            FeatureInputStream fin = fin(s, charset, e);
+            assertEquals(s, new String(fin.readCharArray(5)));
+            assertEquals(-1, fin.readUtf8());
+            for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+            {
+                if (engine != StreamRegex.Engine.BYTES)
+                {
+                    assertEquals(e + " " + engine, s, new StreamRegex("[^x]+", engine).readItem(fin(s, charset, e)));
+                }
+            }
+        }
+        assertEquals("aéb", new StreamRegex("[^x]+", StreamRegex.Engine.BYTES).readItem(fin("aéb", "UTF-8", Encoding.UTF_8)));
+        assertEquals("café", new StreamRegex("caf[é]", StreamRegex.Engine.DFA).readItem(fin("café", "ISO-8859-1", Encoding.LATIN_1)));
+        assertTrue(new StreamRegex("caf[é]", StreamRegex.Engine.DFA).matches(fin("café", "ISO-8859-1", Encoding.LATIN_1)));
+        assertEquals("caf\u00C3\u00A9", new String(fin("café", "UTF-8", Encoding.LATIN_1).readCharArray(5)));
+        assertEquals("café", new String(fin("caf\u00E9", "ISO-8859-1", Encoding.GUESS).readCharArray(4)));
+        for (String bad : new String[] { "caf\u00E9", "\u00C0\u00AF" })
+        {
+            try
+            {
+                fin(bad, "ISO-8859-1", Encoding.UTF_8).readCharArray(4);
+                fail(bad + " is not UTF-8");
+            }
+            catch (ParseEx expected) { }
+        }
+        try
+        {
+            fin("caf\u00E9", "ISO-8859-1", Encoding.ASCII).readCharArray(4);
+            fail("é is not ASCII");
+        }
+        catch (ParseEx expected) { }
+        try
+        {
+            new StreamRegex("caf[é]", StreamRegex.Engine.BYTES).matches(fin("café", "ISO-8859-1", Encoding.LATIN_1));
+            fail("BYTES reads UTF-8");
+        }
+        catch (IllegalArgumentException expected) { }
+    }
+
+}
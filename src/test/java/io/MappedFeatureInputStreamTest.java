@@ -0,0 +1,46 @@
+package io;
+
+import io.streamregex.StreamRegex;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MappedFeatureInputStreamTest {
+
+    @Test
+    public void testMappedRegions() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for(int i = 0; i < 3000; i++) b.append("abä");
+        Path file = Files.createTempFile("mapped", ".txt");
+        try
+        {
+            Files.write(file, b.toString().getBytes("UTF-8"));
+            try (MappedFeatureInputStream fin = new MappedFeatureInputStream(file))
+            {
+                assertTrue(new StreamRegex("(abä)*").matches(fin));
+            }
+            try (MappedFeatureInputStream fin = new MappedFeatureInputStream(
+                    FileChannel.open(file, StandardOpenOption.READ), 1000))
+            {
+                assertEquals("abä", new String(fin.readCharArray(3)));
+                fin.mark();
+                for(int i = 0; i < 4000; i++) fin.readUtf8();
+                assertEquals(5333, fin.rewind());
+                assertEquals(b.substring(3, 4002), new String(fin.readCharArray(3999)));
+                assertTrue(new StreamRegex("(abä)*").matches(fin));
+                fin.rewind();
+                assertEquals('a', fin.readUtf8());
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+}
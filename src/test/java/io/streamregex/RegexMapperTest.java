@@ -1,9 +1,26 @@
 package io.streamregex;
 
 import static util.RT.fin;
+import io.Encoding;
 import io.FeatureInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.io.UncheckedIOException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import struct.Duple;
+import util.RT;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 
 public class RegexMapperTest {
@@ -36,6 +53,352 @@ public class RegexMapperTest {
         assertReadSequence(rl, in, 0,1,0,2,0,1,2,null);
     }
     
+    @Test public void testMapEngines() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            RegexMapper<Integer> rl = new RegexMapper.Builder()
+                    .mapAll(
+                            "[ \t\r\n]+", 0,
+                            "a+b?", 1,
+                            "b+", 2
+                    )
+                    .engine(engine)
+                    .build();
+            assertReadSequence(rl, fin("  ab bb aaabb"), 0,1,0,2,0,1,2,null);
+        }
+    }
+
+    @Test public void testMapPriority() throws IOException
+    {
+        RegexMapper<String> rl = new RegexMapper.Builder()
+                .mapAll(
+                        "if", "IF",
+                        "[a-z]+", "ID",
+                        "[ ]+", "WS",
+                        "[a-z]+[0-9]", "ID_NUM"
+                )
+                .engine(StreamRegex.Engine.DFA)
+                .build();
+        assertReadSequence(rl, fin("if iff i ifx1"), "IF","WS","ID","WS","ID","WS","ID_NUM",null);
+    }
+
+    static final StreamRegex.Engine[] AUTOMATA = {
+        StreamRegex.Engine.LAZY_DFA, StreamRegex.Engine.DFA, StreamRegex.Engine.PIKE_VM, StreamRegex.Engine.BYTES,
+        StreamRegex.Engine.COMPILED
+    };
+
+    @Test public void testMapLiterals() throws IOException
+    {
+        for (StreamRegex.Engine engine : AUTOMATA)
+        {
+            RegexMapper.Builder b = new RegexMapper.Builder()
+                    .mapAll(
+                            "=", "EQ",
+                            "==", "EQEQ",
+                            "\\+\\+", "INC",
+                            "\\+", "PLUS",
+                            "[ ]+", "WS",
+                            "[a-z]+", "ID",
+                            "else", "ELSE"
+                    )
+                    .engine(engine);
+            for (int i = 0; i < 1000; i++)
+            {
+                b.map("kw" + i + "x", "KW");
+            }
+            assertReadSequence(b.build(), fin("a == b++ else kw42x ===+"),
+                    "ID","WS","EQEQ","WS","ID","INC","WS","ID","WS","KW","WS","EQEQ","EQ","PLUS",null);
+            RegexMapper<String> rl = new RegexMapper.Builder().mapAll("else", "ELSE", "[0-9]+", "NUM").engine(engine).build();
+            for (Session session : new Session[] { rl.session(), rl.own() })
+            {
+                assertEquals(engine.toString(), "else", session.readItem(fin("else")));
+                assertEquals(engine.toString(), 0, session.lastRule());
+                assertTrue(engine.toString(), session.matches(fin("else")));
+                assertFalse(engine.toString(), session.matches(fin("elsex")));
+                assertTrue(engine.toString(), session.matches(fin("42")));
+            }
+            assertEquals(engine.toString(), "else", rl.readItem(fin("else1")));
+            assertTrue(engine.toString(), rl.matches(fin("else")));
+        }
+        LiteralTrie t = new LiteralTrie(new String[] {"if", "in", "iff", "ä", "if"}, new int[] {3, 4, 5, 6, 7});
+        assertEquals(6, t.size());
+        assertEquals(3, t.rule(t.next(t.next(LiteralTrie.ROOT, 'i'), 'f')));
+        assertEquals(6, t.rule(t.next(LiteralTrie.ROOT, 'ä')));
+        assertEquals(LiteralTrie.FAIL, t.next(LiteralTrie.ROOT, 'x'));
+    }
+
+    @Test public void testReadInPlace() throws IOException
+    {
+        String s = "a == b++ elsä";
+        char[] a = ("-" + s + "-").toCharArray();
+        byte[] bytes = ("-" + s + "-").getBytes(RT.UTF8);
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            RegexMapper<String> rl = new RegexMapper.Builder()
+                    .mapAll("==", "EQEQ", "\\+\\+", "INC", "[ ]+", "WS", "[a-zä]+", "ID", "else", "ELSE")
+                    .engine(engine)
+                    .build();
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < s.length(); )
+            {
+                Duple<String, String> d = rl.readNext(s, i);
+                assertEquals(d.t, rl.readNext(a, i + 1, s.length() - i).t);
+                b.append(' ').append(d.u).append(' ').append(d.t);
+                i += d.t.length();
+            }
+            assertEquals(engine.toString(), " ID a WS   EQEQ == WS   ID b INC ++ WS   ID elsä", b.toString());
+            assertEquals(engine.toString(), 7, rl.itemEnd(a, 6, s.length() - 5));
+            assertEquals(engine.toString(), 15, rl.itemEnd(bytes, 10, bytes.length - 11));
+            assertEquals(engine.toString(), "elsä", rl.readNext(bytes, 10, bytes.length - 10).t);
+            assertEquals(engine.toString(), null, rl.readNext(a, 0, 1).t);
+            assertEquals(-1, rl.itemEnd(bytes, 0, 1));
+
+            StreamRegex r = new StreamRegex("[a-zä]+", engine);
+            assertTrue(r.matches("elsä"));
+            assertTrue(r.matches(a, 10, 4));
+            assertTrue(r.matches(bytes, 10, 5));
+            assertFalse(r.matches(bytes, 10, 6));
+            assertFalse(r.matches(s));
+            assertEquals(new Match(9, 13), r.find(s, 7));
+            assertEquals(new Match(10, 15), r.find(bytes, 8, bytes.length - 8));
+            assertEquals(null, r.find("++", 0));
+        }
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 100000; i++) many.append('a');
+        assertEquals(null, new StreamRegex("a+b").find(many, 0));
+        assertEquals(new Match(0, 100001), new StreamRegex("a+b").find(many.append('b'), 0));
+        assertEquals(new Match(99990, 100001), new StreamRegex("a{0,10}b").find(many, 5));
+        assertEquals(new Match(1, 3), new StreamRegex("[^x]+").find("x\uD83D\uDE00x", 0));
+        assertEquals(new Match(3, 4), new StreamRegex("[^x]").find("x\uD83D\uDE00y", 2));
+        byte[] pair = "x\uD83D\uDE00x".getBytes("UTF-16BE");
+        assertEquals("[<2,4>]", Arrays.toString(new StreamRegex("[^x]").findAll(
+                new FeatureInputStream(new ByteArrayInputStream(pair), Encoding.UTF_16BE)).toArray()));
+        assertEquals("a\u20ACb", new StreamRegex("[^x]+", StreamRegex.Engine.BYTES).readItem("a\u20ACbx", 0));
+    }
+
+    @Test public void testTokenStream() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 2000; i++) b.append("id").append(i).append(" = ").append(i * 7).append(i % 5 == 0 ? "ä;\n" : "\n");
+        byte[] bytes = b.toString().getBytes(RT.UTF8);
+        for (StreamRegex.Engine engine : new StreamRegex.Engine[] { StreamRegex.Engine.LAZY_DFA, StreamRegex.Engine.LANES })
+        {
+            RegexMapper<String> rl = new RegexMapper.Builder()
+                    .mapAll("[a-z]+[0-9]*", "ID", "[0-9]+", "NUM", "=", "EQ", "[ \n]+", "WS", "ä", "AE")
+                    .engine(engine)
+                    .build();
+            List<String> seq = rl.tokens(bytes, 0, bytes.length, "\\n").map(Token::toString).collect(Collectors.toList());
+            assertEquals(2000 * 6 + 400 * 2, seq.size());
+            assertEquals("[ID id0 <0,3>, WS   <3,4>, EQ = <4,5>, WS   <5,6>, NUM 0 <6,7>, AE ä <7,9>, null ; <9,10>, WS \n <10,11>]",
+                    seq.subList(0, 8).toString());
+            Stream<Token<String>> par = rl.tokens(ParallelScan.of(bytes, 0, bytes.length), "\\n", 64).parallel();
+            assertEquals(engine.toString(), seq, par.map(Token::toString).collect(Collectors.toList()));
+        }
+        Path file = Files.createTempFile("tokens", ".txt");
+        try
+        {
+            Files.write(file, bytes);
+            RegexMapper<String> rl = new RegexMapper.Builder().mapAll("[^\n]+", "LINE", "\n", "NL").build();
+            try (Stream<Token<String>> lines = rl.tokens(file))
+            {
+                assertEquals(400, lines.parallel().filter(t -> t.text.endsWith(";")).count());
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test public void testSessions() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            RegexMapper<String> rl = new RegexMapper.Builder()
+                    .mapAll("=", "EQ", "[a-z]+", "ID", "[0-9]+", "NUM", "[ ]+", "WS")
+                    .engine(engine)
+                    .build();
+            FeatureInputStream own = fin("= 12 iff");
+            assertEquals(engine.toString(), "EQ", rl.readNext(own).u);
+            List<String> read = IntStream.range(0, 64).parallel().mapToObj(i ->
+            {
+                MapperSession<String> session = rl.session();
+                StringBuilder b = new StringBuilder();
+                try
+                {
+                    FeatureInputStream in = fin("x" + i + " = " + i);
+                    for (Duple<String, String> d; (d = session.readNext(in)).t != null; )
+                    {
+                        b.append(d.u).append(' ');
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                return b.toString();
+            }).collect(Collectors.toList());
+            for (int i = 0; i < 64; i++)
+            {
+                assertEquals(engine.toString(), "ID NUM WS EQ WS NUM ", read.get(i));
+            }
+            assertEquals("WS", rl.readNext(own).u);
+            assertEquals("NUM", rl.readNext(own).u);
+            assertEquals(engine.toString(), "EQ", rl.session().readNext("=", 0).u);
+        }
+    }
+
+    @Test public void testReadSpans() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            RegexMapper<String> rl = new RegexMapper.Builder()
+                    .mapAll(
+                            "[ ]+", "WS",
+                            "[a-zä]+", "ID",
+                            "[0-9]+", "NUM",
+                            "=", "EQ"
+                    )
+                    .engine(engine)
+                    .build();
+            FeatureInputStream in = fin("ab = 12 cä");
+            TokenSpan token = new TokenSpan();
+            StringBuilder b = new StringBuilder();
+            while (rl.readNext(in, token))
+            {
+                b.append(rl.getReferend(token.rule())).append(' ').append(token).append(' ').append(token.start()).append(',');
+                assertTrue(token.contentEquals(token.toString()));
+                assertEquals(token.toString().hashCode(), token.contentHash());
+            }
+            assertEquals(engine.toString(), "ID ab 0,WS   2,EQ = 3,WS   4,NUM 12 5,WS   7,ID cä 8,", b.toString());
+            assertEquals(-1, in.read());
+        }
+        RegexMapper<String> rl = new RegexMapper.Builder()
+                .mapAll("if", "IF", "[a-z]+", "ID", "[ ]+", "WS")
+                .build();
+        FeatureInputStream in = fin("iff if");
+        TokenSpan token = new TokenSpan();
+        assertTrue(rl.readNext(in, token));
+        assertTrue(token.contentEquals("iff"));
+        assertFalse(token.contentEquals("if"));
+        rl.readNext(in, token);
+        rl.readNext(in, token);
+        assertEquals("IF", rl.getReferend(token.rule()));
+        assertEquals(2, token.byteLength());
+        assertFalse(rl.readNext(in, token));
+    }
+
+    @Test public void testReadSpansPastRetention() throws IOException
+    {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 10000; i++) s.append("abc ");
+        byte[] input = s.toString().getBytes(RT.UTF8);
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            RegexMapper<String> rl = new RegexMapper.Builder()
+                    .mapAll("[a-c]+", "ID", "[ ]+", "WS")
+                    .engine(engine)
+                    .build();
+            FeatureInputStream in = new FeatureInputStream(new ByteArrayInputStream(input), 8192);
+            TokenSpan token = new TokenSpan();
+            for (int i = 0; i < 20000; i++)
+            {
+                assertTrue(rl.readNext(in, token));
+                assertEquals(engine + " " + i, i % 2 == 0 ? "abc" : " ", token.toString());
+                assertEquals(i / 2 * 4 + i % 2 * 3, token.start());
+            }
+            assertFalse(rl.readNext(in, token));
+        }
+        StreamRegex r = new StreamRegex("[a-c ]+");
+        FeatureInputStream in = new FeatureInputStream(new ByteArrayInputStream(input), 8192);
+        try
+        {
+            r.readToken(in, new TokenSpan());
+            fail("the token is longer than the retention limit");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("retention"));
+        }
+        byte[] big = new byte[3 << 20];
+        Arrays.fill(big, (byte) 'x');
+        big[0] = 'a';
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            in = new FeatureInputStream(new ByteArrayInputStream(big), 8192);
+            assertEquals("a", new StreamRegex("a", engine).readItem(in));
+            assertEquals(big.length - 1, new StreamRegex("x").findAll(in).count());
+            in = new FeatureInputStream(new ByteArrayInputStream(big), 8192);
+            assertEquals("a", new StreamRegex("a", engine).readItem(in));
+            assertTrue(new StreamRegex("x*", engine).matches(in));
+        }
+    }
+
+    @Test public void testFeed() throws IOException
+    {
+        RegexMapper<String> rl = new RegexMapper.Builder()
+                .mapAll(
+                        "[ ]+", "WS",
+                        "[a-zä]+", "ID",
+                        "==", "EQEQ",
+                        "=", "EQ",
+                        "\\+\\+", "INC",
+                        "\\+", "PLUS"
+                )
+                .build();
+        byte[] input = "a == bä++ x ===+?".getBytes("UTF-8");
+        String expected = "[ID a, WS  , EQEQ ==, WS  , ID bä, INC ++, WS  , ID x, WS  , EQEQ ==, EQ =, PLUS +, null ?]";
+        for (int cut = 0; cut <= input.length; cut++)
+        {
+            List<String> tokens = new ArrayList<>();
+            Feed feed = rl.feed(sink(rl, tokens));
+            feed.feed(ByteBuffer.wrap(input, 0, cut));
+            feed.feed(ByteBuffer.wrap(input, cut, input.length - cut));
+            feed.end();
+            assertEquals(expected, tokens.toString());
+        }
+        List<String> tokens = new ArrayList<>();
+        Feed feed = rl.feed(sink(rl, tokens));
+        for (byte x : input)
+        {
+            ByteBuffer direct = ByteBuffer.allocateDirect(1);
+            direct.put(x).flip();
+            feed.feed(direct);
+        }
+        assertEquals(13, tokens.size());
+        feed.end();
+        assertEquals(expected, tokens.toString());
+
+        List<String> early = new ArrayList<>();
+        Feed ends = new StreamRegex("ab|c").feed((rule, b, off, len) -> early.add(new String(b, off, len, RT.UTF8)));
+        ends.feed(ByteBuffer.wrap("cab".getBytes("UTF-8")));
+        assertEquals("[c, ab]", early.toString());
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put("abc".getBytes("UTF-8")).flip();
+        ends.feed(direct);
+        assertEquals("[c, ab, ab, c]", early.toString());
+        assertFalse(direct.hasRemaining());
+
+        Feed pair = new StreamRegex("a[^x]+").feed();
+        pair.feed(ByteBuffer.wrap("a\uD83D\uDE00b".getBytes("UTF-8"), 0, 3));
+        pair.feed(ByteBuffer.wrap("a\uD83D\uDE00b".getBytes("UTF-8"), 3, 3));
+        assertTrue(pair.matches());
+        Feed m = new StreamRegex("(ab)*").feed();
+        m.feed(ByteBuffer.wrap("aba".getBytes("UTF-8")));
+        assertFalse(m.matches());
+        m.feed(ByteBuffer.wrap("b".getBytes("UTF-8")));
+        assertTrue(m.matches());
+        m.feed(ByteBuffer.wrap("b".getBytes("UTF-8")));
+        assertFalse(m.matches());
+    }
+
+    private static Feed.Sink sink(RegexMapper<String> rl, List<String> tokens)
+    {
+        return (rule, b, off, len) ->
+                tokens.add((rule < 0 ? null : rl.getReferend(rule)) + " " + new String(b, off, len, RT.UTF8));
+    }
+
     private <T> void assertReadSequence(RegexMapper<T> rl, FeatureInputStream in, T ... ts) throws IOException
     {
         for(T t : ts)
@@ -5,6 +5,12 @@ import java.io.IOException;
 import org.junit.Test;
 import static util.RT.fin;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import util.RT;
 import static org.junit.Assert.*;
 import org.junit.Ignore;
 
@@ -84,6 +90,291 @@ public class StreamRegexTest {
         assertTrue(x.in(200));
     }
     
+    @Test public void testCharClassTables()
+    {
+        CharClass x = new CharClass();
+        x.inr.add(new CharRange(60, 70));
+        x.inr.add(new CharRange(0x7f0, 0x900));
+        x.inr.add(new CharRange(0x3000, 0x3010));
+        x.outr.add(new CharRange(0x800, 0x3005));
+        x.out().set(65);
+        x.simplify();
+        assertArrayEquals(new int[] {60, 64, 66, 70, 0x7f0, 0x7ff, 0x3006, 0x3010}, x.ranges());
+        assertTrue(x.in(63) && x.in(66) && x.in(0x7f0) && x.in(0x7ff) && x.in(0x3006) && x.in(0x3010));
+        assertFalse(x.in(59) || x.in(65) || x.in(71) || x.in(0x7ef) || x.in(0x800) || x.in(0x3005) || x.in(0x3011));
+        assertNull(x.in);
+    }
+
+    @Test public void testAlphabet()
+    {
+        Alphabet a = Alphabet.of(Nfa.compile(r("[^a]b").root));
+        assertEquals(3, a.size);
+        assertEquals(a.classOf('c'), a.classOf('\uffff'));
+        assertNotEquals(a.classOf('a'), a.classOf('b'));
+        assertEquals(2, Alphabet.of(Nfa.compile(r("[a-z]+").root).toUtf8()).size);
+    }
+
+    static final Object[] MATCH_CASES = {
+        "foobar", "foobar", true,
+        "foo", "foo-x", false,
+        "[\\u0020-\\u0080]*", "foobar", true,
+        "a\\[\\]\\]\\(\\)b[\\[\\-]+", "a[]]()b-[", true,
+        "a*ab", "aaab", true,
+        "(aba+)*", "abaaba", true,
+        "fo*ba*r", "foobr", true,
+        "f?o?bar", "fbar", true,
+        "fo{2}bar", "foobar", true,
+        "fo{1,3}bar", "fooobar", true,
+        "fo{,2}bar", "fooobar", false,
+        "fo{4,}bar", "fooobar", false,
+        "f[ob]+[ax\\t]?[r]", "fooobar", true,
+        "[a-z^c-e]+", "fooobar", true,
+        "[^c-er]+", "fooobar", false,
+        "a|b*|c", "bb", true,
+        "(a)|(b*)|(c)", "c", true,
+        "(o){2}", "ooo", false,
+        "(o)*(p)*", "ooopp", true,
+        "(((fg?))|(o|p))*(bar)+", "fooobarbar", true,
+        "(f(o?)?o)*", "foo", true,
+        "(f[op]{3})*(b(c|(b)(r|x)))", "fooobar", false,
+        "(b(ö|a(c)?(r|x)))", "bar", true,
+        "(a*[0-9]+(.[0-9])?)|foobar|baz", "aaaa0.3", true,
+        "foobar", "foo", false,
+    };
+
+    private void assertEngineMatches(StreamRegex.Engine engine) throws IOException
+    {
+        for (int i = 0; i < MATCH_CASES.length; i += 3)
+        {
+            String p = (String) MATCH_CASES[i], s = (String) MATCH_CASES[i + 1];
+            assertEquals(p + " ~ " + s, MATCH_CASES[i + 2], new StreamRegex(p, engine).matches(fin(s)));
+        }
+    }
+
+    private void assertEngineReads(StreamRegex.Engine engine) throws IOException
+    {
+        assertEquals("foo", new StreamRegex("(f[0-9]+|foo|b00)", engine).readItem(fin("foobar")));
+        assertEquals("aaaabc", new StreamRegex("(a*|a*bc)", engine).readItem(fin("aaaabc...")));
+        assertEquals("aaaa", new StreamRegex("(a*|a*bcd)", engine).readItem(fin("aaaabc...")));
+        FeatureInputStream fin = fin("foobe");
+        assertEquals(null, new StreamRegex("fo*c", engine).readItem(fin));
+        fin.rewind();
+        assertEquals("foo", new StreamRegex("foo+", engine).readItem(fin));
+        assertEquals(null, new StreamRegex("az", engine).readItem(fin));
+        assertEquals("b", new StreamRegex("[a-d]*", engine).readItem(fin));
+        assertEquals("e", new StreamRegex("[^f]+", engine).readItem(fin));
+    }
+
+    @Test public void testLazyDfaMatches() throws IOException {  assertEngineMatches(StreamRegex.Engine.LAZY_DFA); }
+    @Test public void testLazyDfaReads() throws IOException {    assertEngineReads(StreamRegex.Engine.LAZY_DFA); }
+    @Test public void testLazyDfaBudget() throws IOException
+    {
+        StreamRegex r = new StreamRegex("[ab]*a[ab]{6}", StreamRegex.Engine.LAZY_DFA, 8);
+        assertTrue(r.matches(fin("abbabbaabbababbabbbbbb")));
+        assertTrue(r.stateCount() <= 8);
+        assertTrue(r.matches(fin("aabbbbbb")));
+        LazyDfa dfa = new LazyDfa(Nfa.compile(r.root), 8);
+        LazyDfa fork = (LazyDfa) dfa.fork();
+        assertSame(dfa.alphabet, fork.alphabet);
+        assertEquals(2, fork.size());
+        assertTrue(fork.matches(fin("abbabbaabbababbabbbbbb")));
+    }
+    
+    @Test public void testDfaMatches() throws IOException {      assertEngineMatches(StreamRegex.Engine.DFA); }
+    @Test public void testDfaReads() throws IOException {        assertEngineReads(StreamRegex.Engine.DFA); }
+    @Test public void testDfaMinimized() throws IOException
+    {
+        assertEquals(5, new StreamRegex("(a|b)*abb|(a|b)*abb", StreamRegex.Engine.DFA).stateCount());
+        assertEquals(2, new StreamRegex("[ab]*|a*|b*", StreamRegex.Engine.DFA).stateCount());
+    }
+    @Test public void testPikeVmMatches() throws IOException {  assertEngineMatches(StreamRegex.Engine.PIKE_VM); }
+    @Test public void testPikeVmReads() throws IOException {    assertEngineReads(StreamRegex.Engine.PIKE_VM); }
+    @Test public void testBytesMatches() throws IOException {   assertEngineMatches(StreamRegex.Engine.BYTES); }
+    @Test public void testBytesReads() throws IOException {     assertEngineReads(StreamRegex.Engine.BYTES); }
+    @Test public void testBytesUtf8() throws IOException
+    {
+        StreamRegex r = new StreamRegex("[a-zäö\\u0400-\\u04ff\\u20ac]+", StreamRegex.Engine.BYTES);
+        assertTrue(r.matches(fin("häröд€")));
+        assertFalse(r.matches(fin("härå")));
+        FeatureInputStream fin = fin("pöö€åx");
+        assertEquals("pöö€", r.readItem(fin));
+        assertEquals("å", new StreamRegex("[^x]", StreamRegex.Engine.BYTES).readItem(fin));
+        assertEquals("x", r.readItem(fin));
+    }
+    @Test public void testSupplementary() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            String e = engine.toString();
+            assertTrue(e, new StreamRegex("a[^x]+", engine).matches(fin("a\uD83D\uDE00b")));
+            assertEquals(e, "a\uD83D\uDE00", new StreamRegex("a[^b]*", engine).readItem(fin("a\uD83D\uDE00b")));
+            assertTrue(e, new StreamRegex("a[^x]{2}b", engine).matches(fin("a\uD83D\uDE00b")));
+            assertFalse(e, new StreamRegex("a[^x]b", engine).matches(fin("a\uD83D\uDE00b")));
+            assertTrue(e, new StreamRegex("\uD83D\uDE00+", engine).matches(fin("\uD83D\uDE00")));
+            assertFalse(e, new StreamRegex("\uD83D\uDE00+", engine).matches(fin("\uD83D\uDE00\uD83D\uDE01")));
+            assertTrue(e, new StreamRegex("[\uD800-\uDBFF][\uDC00-\uDFFF]", engine).matches(fin("\uDBFF\uDFFF")));
+            assertFalse(e, new StreamRegex("[\u0000-\uD7FF\uE000-\uFFFF]+", engine).matches(fin("a\uD83D\uDE00")));
+        }
+    }
+    @Test public void testCompiledMatches() throws IOException { assertEngineMatches(StreamRegex.Engine.COMPILED); }
+    @Test public void testCompiledReads() throws IOException {   assertEngineReads(StreamRegex.Engine.COMPILED); }
+    @Ignore @Test public void testCompiledBenchmark() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        while (b.length() < 1000000)
+        {
+            b.append("word").append(b.length() % 97).append(", ");
+        }
+        String input = b.toString();
+        for (StreamRegex.Engine engine : new StreamRegex.Engine[] {StreamRegex.Engine.DFA, StreamRegex.Engine.COMPILED})
+        {
+            StreamRegex r = new StreamRegex("([a-z]+[0-9]*[,;]?[ \t\n]*)*", engine);
+            long time = 0;
+            for (int round = 0; round < 5; round++)
+            {
+                FeatureInputStream fin = fin(input);
+                long start = System.nanoTime();
+                assertTrue(r.matches(fin));
+                time = System.nanoTime() - start;
+            }
+            System.out.println("testCompiledBenchmark(" + engine + ") took " + time / 1000000 + " ms");
+        }
+    }
+    @Test public void testCountedRepetition() throws IOException
+    {
+        StringBuilder hex = new StringBuilder();
+        while (hex.length() < 4096)
+        {
+            hex.append("0123456789abcdef");
+        }
+        for (StreamRegex.Engine engine : new StreamRegex.Engine[] {StreamRegex.Engine.DFA, StreamRegex.Engine.PIKE_VM})
+        {
+            StreamRegex r = new StreamRegex("x[0-9a-f]{1,4096}y", engine);
+            assertTrue(r.stateCount() < 10);
+            assertTrue(r.matches(fin("x" + hex + "y")));
+            assertFalse(r.matches(fin("x" + hex + "0y")));
+            assertFalse(r.matches(fin("xy")));
+            assertEquals("x" + hex.substring(0, 100), new StreamRegex("x[0-9a-f]{0,4096}", engine).readItem(fin("x" + hex.substring(0, 100) + "y")));
+        }
+        StreamRegex counted = new StreamRegex("x[0-9a-f]{1,4096}y");
+        for (Runnable scan : new Runnable[] {() -> counted.find("x0y", 0), () -> counted.feed(), () -> counted.prefilter()})
+        {
+            try
+            {
+                scan.run();
+                fail("the scanning paths can not count");
+            }
+            catch (CompileEx ex)
+            {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("only counted by the automaton engines"));
+            }
+        }
+        assertEquals("<0,3>", String.valueOf(new StreamRegex("x[0-9a-f]{1,32}y").find("x0y", 0)));
+        java.util.Random random = new java.util.Random(13);
+        for (String p : new String[] {"[ab]*a[ab]{33}", "(ab|[ab]{40,45})b", "a{34,}b|a{35}", "([ab]{33}|b)*"})
+        {
+            StreamRegex r = new StreamRegex(p, StreamRegex.Engine.PIKE_VM);
+            for (int i = 0; i < 200; i++)
+            {
+                StringBuilder s = new StringBuilder();
+                for (int n = 30 + random.nextInt(40); n > 0; n--)
+                {
+                    s.append(random.nextInt(8) == 0 ? 'b' : 'a');
+                }
+                assertEquals(p + " ~ " + s, java.util.regex.Pattern.matches(p, s), r.matches(fin(s.toString())));
+            }
+        }
+    }
+    @Test(expected = CompileEx.class) public void testDfaStateLimit()
+    {
+        new StreamRegex("[ab]*a[ab]{6}", StreamRegex.Engine.DFA, 64);
+    }
+    @Test public void testPrefilter() throws IOException
+    {
+        Prefilter p = new StreamRegex("ERROR [A-Z]+: (disk|net)work").prefilter();
+        assertEquals("ERROR ", new String(p.prefix, "UTF-8"));
+        assertEquals("ERROR ", new String(p.required, "UTF-8"));
+        byte[] log = "INFO ok\nERRORS\nERROR DISK: diskwork".getBytes("UTF-8");
+        assertEquals(15, p.find(log, 0, log.length));
+        assertEquals(-1, p.find(log, 16, log.length));
+        assertTrue(p.mayMatch(log, 0, log.length));
+        assertFalse(p.mayMatch(log, 0, 15));
+        assertEquals("abc", new String(new StreamRegex("x*(abcd|abce)+").prefilter().required, "UTF-8"));
+        assertFalse(new StreamRegex("a*").prefilter().selective);
+
+        StreamRegex r = new StreamRegex("[0-9]+", StreamRegex.Engine.DFA);
+        FeatureInputStream fin = fin("id: 42, size: 7");
+        assertEquals(4, r.seek(fin));
+        assertEquals("42", r.readItem(fin));
+        assertEquals(8, r.seek(fin));
+        assertEquals("7", r.readItem(fin));
+        assertEquals(0, r.seek(fin));
+    }
+    @Test public void testFind() throws IOException
+    {
+        assertEquals("[<4,6>, <14,15>]", findAll("[0-9]+", "id: 42, size: 7"));
+        assertEquals("[<0,2>]", findAll("ab|bcd", "abcd"));
+        assertEquals("[<0,4>]", findAll("abcd|bc", "abcd"));
+        assertEquals("[<1,3>, <4,6>]", findAll("abcd|bc", "abcxbc"));
+        assertEquals("[<0,4>, <5,7>]", findAll("ab*", "abbbcab"));
+        assertEquals("[<1,5>, <8,10>]", findAll("ä+", "xää y ä"));
+        assertEquals("[]", findAll("a*", "bbb"));
+        assertEquals(new Match(2, 4), r("b+").find(fin("aabbaabb")));
+        assertNull(r("c").find(fin("aabbaabb")));
+        InputStream in = new InputStream() {
+            int i = 0;
+            @Override public int read() throws IOException {
+                return i++ >= 400000 ? -1 : "xxab".charAt(i % 4);
+            }
+        };
+        assertEquals(100000, r("ab").findAll(fin(in)).count());
+    }
+    @Test public void testParallel() throws IOException
+    {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < 1000; i++) b.append(i % 7 == 0 ? "abbbbbbbbbbbcab " : "ä" + i + "b ");
+        byte[] bytes = b.toString().getBytes(RT.UTF8);
+        String[] patterns = { "ab*", "b+c?", "[0-9]+b", "ä[0-9]*|b c", "(ab*c)+" };
+        for (int chunk : new int[] { 1, 3, 7, 64, 1 << 20 })
+        {
+            ParallelScan scan = new ParallelScan(ForkJoinPool.commonPool(), chunk);
+            for (String p : patterns)
+            {
+                StreamRegex r = r(p);
+                assertEquals(p + " " + chunk, r.findAll(fin(b.toString())).collect(Collectors.toList()),
+                        scan.findAll(r.bytes(), r.prefilter(), ParallelScan.of(bytes, 0, bytes.length)));
+                Dfa dfa = Dfa.compile(Nfa.compile(r.root).toUtf8(), 1000, p);
+                assertEquals(p + " " + chunk, r.matches(fin(b.toString())), scan.matches(dfa, ParallelScan.of(bytes, 0, bytes.length)));
+            }
+            Dfa dfa = Dfa.compile(Nfa.compile(r("[^x]*").root).toUtf8(), 1000, "");
+            assertTrue(scan.matches(dfa, ParallelScan.of(bytes, 0, bytes.length)));
+        }
+        FeatureInputStream in = fin(b.toString());
+        Finder f = new Finder(r("ab*c|q").bytes(), r("ab*c|q").prefilter(), in).limit(1);
+        assertEquals(new Match(0, 13), f.next());
+        assertFalse(f.hasNext());
+        assertTrue(in.position() < 20);
+        Path file = Files.createTempFile("parallel", ".txt");
+        try
+        {
+            Files.write(file, bytes);
+            assertTrue(r("[^x]*").matchesParallel(file));
+            assertFalse(r("[^b]*").matchesParallel(bytes, 0, bytes.length));
+            assertEquals(r("b+c?").findAll(fin(b.toString())).count(), r("b+c?").findAllParallel(file).size());
+            assertEquals(new Match(14, 15), r("b+c?").findAllParallel(bytes, 12, 3).get(0));
+            assertEquals(Arrays.asList(new Match(1, 5)), r("[^x]+").findAllParallel("x\uD83D\uDE00x".getBytes(RT.UTF8), 0, 6));
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    private String findAll(String pattern, String input)
+    {
+        return Arrays.toString(r(pattern).findAll(fin(input)).toArray());
+    }
+    
     private StreamRegex r(String s)
     {
         return new StreamRegex(s);
@@ -113,13 +404,36 @@ public class StreamRegexTest {
             int i = 0;
             @Override public int read() throws IOException
             {
-                if (i++ > count) {return -1;}
-                return 'a'+(i%2);
+                if (i >= count) {return -1;}
+                return 'a'+(i++%2);
             }
         };
         assertTrue(r("(ab)*").matches(fin(in)));
         System.out.println("testBig(" + count + ") took " + (System.currentTimeMillis() - start) + " ms");
     }
+
+    @Test public void testBigEngines() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            testBig_(1000000, engine);
+        }
+    }
+
+    private void testBig_(final int count, StreamRegex.Engine engine) throws IOException
+    {
+        StreamRegex r = new StreamRegex("(ab)*", engine);
+        long start = System.currentTimeMillis();
+        InputStream in = new InputStream() {
+            int i = 0;
+            @Override public int read() throws IOException
+            {
+                return i < count ? 'a' + (i++ % 2) : -1;
+            }
+        };
+        assertTrue(r.matches(fin(in)));
+        System.out.println("testBig(" + count + ", " + engine + ") took " + (System.currentTimeMillis() - start) + " ms");
+    }
     //benchmark(1000000): 190ms
     //         (10000000): 876ms
     //         (100000000): 7477ms
@@ -150,9 +464,38 @@ public class StreamRegexTest {
         assertEquals("aaaa", r("(a*|a*bcd)").readItem(fin("aaaabc...")));
     }
     
+    @Test public void testReadDeepRepetition() throws IOException
+    {
+        StreamRegex r = new StreamRegex("(a?){5000}", StreamRegex.Engine.LANES);
+        assertEquals("aa", r.readItem(fin("aab")));
+        assertTrue(r.matches(fin("aaaa")));
+        assertFalse(r.matches(fin("aab")));
+    }
+
     @Test public void testReadAbaStar() throws IOException
     {     
-        assertEquals("aba", r("(aba+)*").readItem(fin("abaabaaba")));
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            assertEquals(engine.toString(), "abaabaaba", new StreamRegex("(aba+)*", engine).readItem(fin("abaabaaba")));
+            assertEquals(engine.toString(), "abaa", new StreamRegex("(aba+)*", engine).readItem(fin("abaab")));
+            assertEquals(engine.toString(), "abcdx", new StreamRegex("(ab|abcd)x?", engine).readItem(fin("abcdx")));
+            assertEquals(engine.toString(), "xababab", new StreamRegex("x(ab)+", engine).readItem(fin("xabababa")));
+            FeatureInputStream in = fin("ab");
+            assertEquals(engine.toString(), null, new StreamRegex("abc", engine).readItem(in));
+            assertEquals(engine.toString(), "ab", new StreamRegex("ab", engine).readItem(in));
+        }
+    }
+
+    @Test public void testReadRollsBack() throws IOException
+    {
+        for (StreamRegex.Engine engine : StreamRegex.Engine.values())
+        {
+            FeatureInputStream fin = fin("abcabcäd abx");
+            assertEquals(engine.toString(), "abcab", new StreamRegex("ab(cab)*", engine).readItem(fin));
+            assertEquals(engine.toString(), "cäd", new StreamRegex("[a-zä]+", engine).readItem(fin));
+            assertEquals(engine.toString(), null, new StreamRegex(" abc", engine).readItem(fin));
+            assertEquals(engine.toString(), " ab", new StreamRegex(" ab", engine).readItem(fin));
+        }
     }
 
     @Test public void testReadNot() throws IOException
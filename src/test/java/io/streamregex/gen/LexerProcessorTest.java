@@ -0,0 +1,37 @@
+package io.streamregex.gen;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class LexerProcessorTest {
+
+    @Lexer(name = "CalcLexer")
+    enum Calc {
+        @Rule("[0-9]+(\\.[0-9]+)?") NUM,
+        @Rule("\\+|-|\\*|/") OP,
+        @Rule("let") LET,
+        @Rule("[a-z]+") ID,
+        @Rule("[ \t\n]+") WS
+    }
+
+    @Test public void testGeneratedLexer()
+    {
+        CalcLexer lx = new CalcLexer("let x1 = 3.25*rate\n");
+        int[] expected = {
+            CalcLexer.LET, CalcLexer.WS, CalcLexer.ID, CalcLexer.NUM, CalcLexer.WS, CalcLexer.ERROR, CalcLexer.WS,
+            CalcLexer.NUM, CalcLexer.OP, CalcLexer.ID, CalcLexer.WS, CalcLexer.EOF
+        };
+        for (int token : expected)
+        {
+            assertEquals(token, lx.next());
+        }
+        assertEquals(Calc.NUM.ordinal(), CalcLexer.NUM);
+        lx = new CalcLexer("letter 3.");
+        assertEquals(CalcLexer.ID, lx.next());
+        assertEquals("letter", lx.token());
+        lx.next();
+        assertEquals(CalcLexer.NUM, lx.next());
+        assertEquals("3", lx.token());
+        assertEquals(8, lx.end());
+    }
+}